@@ -34,22 +34,29 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Process;
 import android.util.DisplayMetrics;
-import android.util.LruCache;
+import android.util.Log;
 import android.view.Display;
+import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageView;
 
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TileBitmapDrawable extends Drawable {
 
+    private static final String TAG = "TileBitmapDrawable";
+
     // The hardware must support textures at least 2048x2048 pixels
     // http://stackoverflow.com/questions/7428996/hw-accelerated-activity-how-to-get-opengl-texture-size-limit
     private static final int BITMAP_TEXTURE_SIZE = 2048;
@@ -58,19 +65,46 @@ public class TileBitmapDrawable extends Drawable {
     private static final int TILE_SIZE_DEFAULT = 128;
 
     // A shared cache is used between instances to minimize OutOfMemoryError
-    private static BitmapLruCache sBitmapCache;
+    private static TileLruCache sBitmapCache;
     private static final Object sBitmapCacheLock = new Object();
 
-    // Instance ids are used to identify a cache hit for a specific instance of TileBitmapDrawable on the shared BitmapLruCache
+    // The tiles of all the instances are decoded by a shared pool of threads, so the tiles of
+    // the visible image are decoded in parallel and no thread is left behind by a dead instance
+    private static final int DECODER_THREADS = MathUtils.clamp(Runtime.getRuntime().availableProcessors(), 1, 4);
+    private static DecoderPool sDecoderPool;
+
+    // Optional, keeps the screen nails and the tiles across instances of the same image
+    private static TileDiskCache sDiskCache;
+    // Compressing a tile for the disk takes a while, it's done on its own thread once the tile is in the memory cache
+    private static ExecutorService sDiskWriter;
+    private static final long SCREEN_NAIL_ID = -1;
+
+    // Instance ids are used to identify a cache hit for a specific instance of TileBitmapDrawable on the shared TileLruCache
     private static final AtomicInteger sInstanceIds = new AtomicInteger(1);
     private final int mInstanceId = sInstanceIds.getAndIncrement();
 
     // The reference of the parent ImageView is needed in order to get the Matrix values and determine the visible area
     private final WeakReference<ImageView> mParentView;
 
-    private final BitmapRegionDecoder mRegionDecoder;
-    private final BlockingQueue<Tile> mDecodeQueue = new LinkedBlockingQueue<>();
-    private final DecoderWorker mDecoderWorker;
+    // Each worker gets its own decoder if we can open the image again, otherwise they share mDecoders[0]
+    private final String mPath;
+    private final BitmapRegionDecoder[] mDecoders = new BitmapRegionDecoder[DECODER_THREADS];
+    private volatile boolean mRecycled;
+
+    // Where the tiles of this image are kept on the disk, or null
+    private final TileDiskCache.Pyramid mPyramid;
+
+    // Guarded by sDecoderPool
+    private final TileQueue mDecodeQueue = new TileQueue();
+
+    // The tiles that couldn't be decoded, e.g. the image is gone from the disk. Sorted, guarded by sBitmapCacheLock
+    private long[] mFailedKeys = new long[16];
+    private int mFailedCount;
+
+    // The tiles missing in the current frame, handed to the pool at once
+    private long[] mMissingKeys = new long[64];
+    private float[] mMissingDistances = new float[64];
+    private int mMissingCount;
 
     private final int mIntrinsicWidth;
     private final int mIntrinsicHeight;
@@ -79,18 +113,31 @@ public class TileBitmapDrawable extends Drawable {
     private final Bitmap mScreenNail;
     private final Paint mPaint = new Paint();
 
-    private Matrix mMatrix;
     private final float[] mMatrixValues = new float[9];
-    private float[] mLastMatrixValues = new float[9];
 
+    // Where the parent view is heading to, e.g. the end of a fling. Its tiles are decoded after the visible ones
+    private boolean mHasPrediction;
+    private float mPredictedTranslationX;
+    private float mPredictedTranslationY;
+    private float mPredictedScale;
+
+    private final Rect mVisibleArea = new Rect();
     private final Rect mTileRect = new Rect();
-    private final Rect mVisibleAreaRect = new Rect();
     private final Rect mScreenNailRect = new Rect();
 
     public static void attachTileBitmapDrawable(ImageView imageView, String path, Drawable placeHolder, OnInitializeListener listener) {
         new InitializationTask(imageView, placeHolder, listener).execute(path);
     }
 
+    /**
+     * Same as {@link #attachTileBitmapDrawable(ImageView, String, Drawable, OnInitializeListener)}, but the screen nail
+     * and the tiles are kept in the disk cache set by {@link #setDiskCache(TileDiskCache)} under {@code cacheKey}, so
+     * they don't have to be decoded again the next time the image is shown.
+     */
+    public static void attachTileBitmapDrawable(ImageView imageView, String path, String cacheKey, Drawable placeHolder, OnInitializeListener listener) {
+        new InitializationTask(imageView, placeHolder, listener).execute(path, cacheKey);
+    }
+
     public static void attachTileBitmapDrawable(ImageView imageView, FileDescriptor fd, Drawable placeHolder, OnInitializeListener listener) {
         new InitializationTask(imageView, placeHolder, listener).execute(fd);
     }
@@ -99,14 +146,24 @@ public class TileBitmapDrawable extends Drawable {
         new InitializationTask(imageView, placeHolder, listener).execute(is);
     }
 
-    private TileBitmapDrawable(ImageView parentView, BitmapRegionDecoder decoder, Bitmap screenNail) {
+    /**
+     * Use {@code cache} to keep the screen nails and the tiles of the images attached with a cache key, null to stop.
+     */
+    public static void setDiskCache(TileDiskCache cache) {
+        synchronized(sBitmapCacheLock) {
+            sDiskCache = cache;
+        }
+    }
+
+    // The decoder can be null if there's a path to open it from, the workers open their own when needed
+    private TileBitmapDrawable(ImageView parentView, BitmapRegionDecoder decoder, String path, int width, int height, Bitmap screenNail, TileDiskCache.Pyramid pyramid) {
         mParentView = new WeakReference<>(parentView);
 
-        synchronized(decoder) {
-            mRegionDecoder = decoder;
-            mIntrinsicWidth = mRegionDecoder.getWidth();
-            mIntrinsicHeight = mRegionDecoder.getHeight();
-        }
+        mDecoders[0] = decoder;
+        mPath = path;
+        mIntrinsicWidth = width;
+        mIntrinsicHeight = height;
+        mPyramid = pyramid;
 
         final DisplayMetrics metrics = new DisplayMetrics();
         getDisplayMetrics(parentView.getContext(), metrics);
@@ -120,18 +177,107 @@ public class TileBitmapDrawable extends Drawable {
         final int maxHorizontalTiles = (int) Math.ceil(2 * metrics.widthPixels / (float) mTileSize) + 1;
         final int maxVerticalTiles = (int) Math.ceil(2 * metrics.heightPixels / (float) mTileSize) + 1;
 
-        // The shared cache will have the minimum required size to display all visible tiles
+        // The shared cache will have the minimum required size to display all visible tiles, twice: the visible ones and the predicted ones
         // Here, we multiply by 4 because in ARGB_8888 config, each pixel is stored on 4 bytes
-        final int cacheSize = 4 * maxHorizontalTiles * maxVerticalTiles * mTileSize * mTileSize;
+        final int cacheSize = 2 * 4 * maxHorizontalTiles * maxVerticalTiles * mTileSize * mTileSize;
 
         synchronized(sBitmapCacheLock) {
             if(sBitmapCache == null) {
-                sBitmapCache = new BitmapLruCache(cacheSize);
+                sBitmapCache = new TileLruCache(cacheSize);
+            }
+            if(sDecoderPool == null) {
+                sDecoderPool = new DecoderPool(DECODER_THREADS);
             }
+            if(sDiskWriter == null) {
+                sDiskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "TileDiskWriter");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stop decoding and release the decoders. The drawable can't be drawn anymore afterward.
+     * Call this when the drawable is detached from its view, otherwise it's only done when the
+     * drawable is garbage collected.
+     */
+    public void recycle() {
+        if(mRecycled) {
+            return;
+        }
+        mRecycled = true;
+        sDecoderPool.cancel(this);
+
+        synchronized(mDecoders) {
+            for(int i = 0; i < mDecoders.length; i++) {
+                final BitmapRegionDecoder decoder = mDecoders[i];
+                if(decoder != null) {
+                    // Waits for the worker using it, if any
+                    synchronized(decoder) {
+                        decoder.recycle();
+                    }
+                    mDecoders[i] = null;
+                }
+            }
+        }
+
+        if(mPyramid != null) {
+            mPyramid.release();
+        }
+    }
+
+    /**
+     * The parent view is going to show the image with this translation and scale soon, e.g. at the end of a fling or
+     * of a pinch. The tiles there are decoded after the visible ones, until the prediction is reached or cleared.
+     */
+    public void setPredictedMatrix(float translationX, float translationY, float scale) {
+        mHasPrediction = true;
+        mPredictedTranslationX = translationX;
+        mPredictedTranslationY = translationY;
+        mPredictedScale = scale;
+        invalidateSelf();
+    }
+
+    // The parent view went somewhere else, the next frame drops the tiles we were prefetching
+    public void clearPredictedMatrix() {
+        mHasPrediction = false;
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        // Nobody's going to see the tiles, draw() will ask again when we're back
+        if(!visible) {
+            sDecoderPool.cancel(this);
         }
+        return changed;
+    }
 
-        mDecoderWorker = new DecoderWorker(this, mRegionDecoder, mDecodeQueue);
-        mDecoderWorker.start();
+    // The decoder for the worker, or null if we've been recycled
+    private BitmapRegionDecoder getDecoder(int worker) {
+        synchronized(mDecoders) {
+            if(mRecycled) {
+                return null;
+            }
+            if(mPath == null) {
+                return mDecoders[0];
+            }
+            if(mDecoders[worker] == null) {
+                try {
+                    mDecoders[worker] = BitmapRegionDecoder.newInstance(mPath, false);
+                } catch (IOException e) {
+                    // Share the first one then
+                    return mDecoders[0];
+                }
+            }
+            return mDecoders[worker];
+        }
     }
 
     @Override
@@ -172,6 +318,7 @@ public class TileBitmapDrawable extends Drawable {
         return mIntrinsicHeight;
     }
 
+    // This is called on every frame while panning and zooming, so nothing is allocated in here
     @Override
     public void draw(Canvas canvas) {
         final ImageView parentView = mParentView.get();
@@ -181,93 +328,206 @@ public class TileBitmapDrawable extends Drawable {
 
         final int parentViewWidth = parentView.getWidth();
         final int parentViewHeight = parentView.getHeight();
-        mMatrix = parentView.getImageMatrix();
-
-        mMatrix.getValues(mMatrixValues);
+        parentView.getImageMatrix().getValues(mMatrixValues);
         final float translationX = mMatrixValues[Matrix.MTRANS_X];
         final float translationY = mMatrixValues[Matrix.MTRANS_Y];
         final float scale = mMatrixValues[Matrix.MSCALE_X];
 
-        // If the matrix values have changed, the decode queue must be cleared in order to avoid decoding unused tiles
-        if(translationX != mLastMatrixValues[Matrix.MTRANS_X] || translationY != mLastMatrixValues[Matrix.MTRANS_Y] || scale != mLastMatrixValues[Matrix.MSCALE_X]) {
-            mDecodeQueue.clear();
+        if(mRecycled) {
+            return;
         }
 
-        mLastMatrixValues = Arrays.copyOf(mMatrixValues, mMatrixValues.length);
+        final int currentLevel = getLevel(scale, parentViewWidth, parentViewHeight);
+        final int currentTileSize = mTileSize << currentLevel;
 
-        // The scale required to display the whole Bitmap inside the ImageView. It will be the minimum allowed scale value
-        final float minScale = Math.min(parentViewWidth / (float) mIntrinsicWidth, parentViewHeight / (float) mIntrinsicHeight);
-
-        // The number of allowed levels for this Bitmap. Each subsequent level is half size of the previous one
-        final int levelCount = Math.max(1, MathUtils.ceilLog2(mIntrinsicWidth / (mIntrinsicWidth * minScale)));
-
-        // sampleSize = 2 ^ currentLevel
-        final int currentLevel = MathUtils.clamp(MathUtils.floorLog2(1 / scale), 0, levelCount - 1);
-        final int sampleSize = 1 << currentLevel;
-
-        final int currentTileSize = mTileSize * sampleSize;
-        final int horizontalTiles = (int) Math.ceil(mIntrinsicWidth / (float) currentTileSize);
-        final int verticalTiles = (int) Math.ceil(mIntrinsicHeight / (float) currentTileSize);
-
-        final int visibleAreaLeft = Math.max(0, (int) (-translationX / scale));
-        final int visibleAreaTop = Math.max(0, (int) (-translationY / scale));
-        final int visibleAreaRight = Math.min(mIntrinsicWidth, Math.round((-translationX + parentViewWidth) / scale));
-        final int visibleAreaBottom = Math.min(mIntrinsicHeight, Math.round((-translationY + parentViewHeight) / scale));
-        mVisibleAreaRect.set(visibleAreaLeft, visibleAreaTop, visibleAreaRight, visibleAreaBottom);
-
-        boolean cacheMiss = false;
-
-        for(int i = 0; i < horizontalTiles; i++) {
-            for(int j = 0; j < verticalTiles; j++) {
-
-                final int tileLeft = i * currentTileSize;
-                final int tileTop = j * currentTileSize;
-                final int tileRight = (i + 1) * currentTileSize <= mIntrinsicWidth ? (i + 1) * currentTileSize : mIntrinsicWidth;
-                final int tileBottom = (j + 1) * currentTileSize <= mIntrinsicHeight ? (j + 1) * currentTileSize : mIntrinsicHeight;
-                mTileRect.set(tileLeft, tileTop, tileRight, tileBottom);
+        if(!setVisibleArea(mVisibleArea, translationX, translationY, scale, parentViewWidth, parentViewHeight)) {
+            return;
+        }
 
-                if(Rect.intersects(mVisibleAreaRect, mTileRect)) {
+        // Only walk through the tiles intersecting the visible area
+        final int firstColumn = mVisibleArea.left / currentTileSize;
+        final int lastColumn = (mVisibleArea.right - 1) / currentTileSize;
+        final int firstRow = mVisibleArea.top / currentTileSize;
+        final int lastRow = (mVisibleArea.bottom - 1) / currentTileSize;
 
-                    final Tile tile = new Tile(mInstanceId, mTileRect, i, j, currentLevel);
+        // The tiles closer to the centre of the viewport are decoded first
+        final float centerX = mVisibleArea.exactCenterX();
+        final float centerY = mVisibleArea.exactCenterY();
+        float farthest = 0;
+        mMissingCount = 0;
+        final int visibleMissingCount;
 
-                    Bitmap cached = null;
-                    synchronized(sBitmapCacheLock) {
-                        cached = sBitmapCache.get(tile.getKey());
-                    }
+        // One lock for the whole frame, the decoder only takes it to put a tile
+        synchronized(sBitmapCacheLock) {
+            for(int i = firstColumn; i <= lastColumn; i++) {
+                for(int j = firstRow; j <= lastRow; j++) {
+                    setTileRect(mTileRect, i, j, currentLevel);
 
+                    final long key = tileKey(mInstanceId, i, j, currentLevel);
+                    final Bitmap cached = sBitmapCache.get(key);
                     if(cached != null) {
                         canvas.drawBitmap(cached, null, mTileRect, mPaint);
                     } else {
-                        cacheMiss = true;
-
-                        synchronized (mDecodeQueue) {
-                            if(!mDecodeQueue.contains(tile)) {
-                                mDecodeQueue.add(tile);
-                            }
+                        // The screen nail is all we'll ever have of the failed ones, don't ask again
+                        if(!isFailedTile(key)) {
+                            final float dx = mTileRect.exactCenterX() - centerX;
+                            final float dy = mTileRect.exactCenterY() - centerY;
+                            final float distance = dx * dx + dy * dy;
+                            addMissingTile(key, distance);
+                            farthest = Math.max(farthest, distance);
                         }
 
                         // The screenNail is used while the proper tile is being decoded
-                        final int screenNailLeft = Math.round(tileLeft * mScreenNail.getWidth() / (float) mIntrinsicWidth);
-                        final int screenNailTop = Math.round(tileTop * mScreenNail.getHeight() / (float) mIntrinsicHeight);
-                        final int screenNailRight = Math.round(tileRight * mScreenNail.getWidth() / (float) mIntrinsicWidth);
-                        final int screenNailBottom = Math.round(tileBottom * mScreenNail.getHeight() / (float) mIntrinsicHeight);
+                        final int screenNailLeft = Math.round(mTileRect.left * mScreenNail.getWidth() / (float) mIntrinsicWidth);
+                        final int screenNailTop = Math.round(mTileRect.top * mScreenNail.getHeight() / (float) mIntrinsicHeight);
+                        final int screenNailRight = Math.round(mTileRect.right * mScreenNail.getWidth() / (float) mIntrinsicWidth);
+                        final int screenNailBottom = Math.round(mTileRect.bottom * mScreenNail.getHeight() / (float) mIntrinsicHeight);
                         mScreenNailRect.set(screenNailLeft, screenNailTop, screenNailRight, screenNailBottom);
 
                         canvas.drawBitmap(mScreenNail, mScreenNailRect, mTileRect, mPaint);
                     }
                 }
             }
+            visibleMissingCount = mMissingCount;
+
+            if(mHasPrediction) {
+                if(Math.abs(translationX - mPredictedTranslationX) < 1 && Math.abs(translationY - mPredictedTranslationY) < 1 &&
+                    Math.abs(scale - mPredictedScale) < scale / 1000) {
+                    // We're there
+                    mHasPrediction = false;
+                } else {
+                    addPredictedTiles(parentViewWidth, parentViewHeight, farthest + 1);
+                }
+            }
         }
 
-        // If we had a cache miss, we will need to redraw until all needed tiles have been decoded by our worker thread
-        if(cacheMiss) {
+        // The queue is replaced on every frame, so the tiles we've scrolled past or aren't heading to anymore are dropped
+        sDecoderPool.schedule(this, mMissingKeys, mMissingDistances, mMissingCount);
+
+        // If we had a cache miss, we will need to redraw until all visible tiles have been decoded by the workers
+        if(visibleMissingCount > 0) {
             invalidateSelf();
         }
     }
 
+    // Queue the missing tiles of the predicted area, ranked after the visible ones. Called with sBitmapCacheLock held
+    private void addPredictedTiles(int parentViewWidth, int parentViewHeight, float rankOffset) {
+        final float scale = mPredictedScale;
+        final int level = getLevel(scale, parentViewWidth, parentViewHeight);
+        final int tileSize = mTileSize << level;
+
+        if(!setVisibleArea(mVisibleArea, mPredictedTranslationX, mPredictedTranslationY, scale, parentViewWidth, parentViewHeight)) {
+            return;
+        }
+
+        final float centerX = mVisibleArea.exactCenterX();
+        final float centerY = mVisibleArea.exactCenterY();
+        for(int i = mVisibleArea.left / tileSize; i <= (mVisibleArea.right - 1) / tileSize; i++) {
+            for(int j = mVisibleArea.top / tileSize; j <= (mVisibleArea.bottom - 1) / tileSize; j++) {
+                final long key = tileKey(mInstanceId, i, j, level);
+                // Not get(), the visible tiles shouldn't be pushed out by the ones we might never see
+                if(!sBitmapCache.contains(key) && !isFailedTile(key)) {
+                    setTileRect(mTileRect, i, j, level);
+                    final float dx = mTileRect.exactCenterX() - centerX;
+                    final float dy = mTileRect.exactCenterY() - centerY;
+                    addMissingTile(key, rankOffset + dx * dx + dy * dy);
+                }
+            }
+        }
+    }
+
+    // The level of tiles shown at the given scale, sampleSize = 2 ^ level
+    private int getLevel(float scale, int parentViewWidth, int parentViewHeight) {
+        // The scale required to display the whole Bitmap inside the ImageView. It will be the minimum allowed scale value
+        final float minScale = Math.min(parentViewWidth / (float) mIntrinsicWidth, parentViewHeight / (float) mIntrinsicHeight);
+
+        // The number of allowed levels for this Bitmap. Each subsequent level is half size of the previous one
+        final int levelCount = Math.max(1, MathUtils.ceilLog2(mIntrinsicWidth / (mIntrinsicWidth * minScale)));
+
+        return MathUtils.clamp(MathUtils.floorLog2(1 / scale), 0, levelCount - 1);
+    }
+
+    // The area of the image shown with the given matrix values, in image coordinates. Returns false if nothing is shown
+    private boolean setVisibleArea(Rect rect, float translationX, float translationY, float scale, int parentViewWidth, int parentViewHeight) {
+        rect.set(Math.max(0, (int) (-translationX / scale)),
+            Math.max(0, (int) (-translationY / scale)),
+            Math.min(mIntrinsicWidth, Math.round((-translationX + parentViewWidth) / scale)),
+            Math.min(mIntrinsicHeight, Math.round((-translationY + parentViewHeight) / scale)));
+        return rect.left < rect.right && rect.top < rect.bottom;
+    }
+
+    // Called with sBitmapCacheLock held
+    private boolean isFailedTile(long key) {
+        return Arrays.binarySearch(mFailedKeys, 0, mFailedCount, key) >= 0;
+    }
+
+    // Called with sBitmapCacheLock held
+    private void addFailedTile(long key) {
+        int index = Arrays.binarySearch(mFailedKeys, 0, mFailedCount, key);
+        if(index >= 0) {
+            return;
+        }
+        index = -index - 1;
+        if(mFailedCount == mFailedKeys.length) {
+            mFailedKeys = Arrays.copyOf(mFailedKeys, mFailedCount * 2);
+        }
+        System.arraycopy(mFailedKeys, index, mFailedKeys, index + 1, mFailedCount - index);
+        mFailedKeys[index] = key;
+        mFailedCount++;
+    }
+
+    private void addMissingTile(long key, float distance) {
+        if(mMissingCount == mMissingKeys.length) {
+            mMissingKeys = Arrays.copyOf(mMissingKeys, mMissingCount * 2);
+            mMissingDistances = Arrays.copyOf(mMissingDistances, mMissingCount * 2);
+        }
+        mMissingKeys[mMissingCount] = key;
+        mMissingDistances[mMissingCount] = distance;
+        mMissingCount++;
+    }
+
+    // Tiles are identified by (instance, column, row, level) packed in a long:
+    // instance id in bits 40-63, level in bits 34-39, column in bits 17-33 and row in bits 0-16
+    private static final int TILE_KEY_POSITION_BITS = 17;
+    private static final int TILE_KEY_LEVEL_BITS = 6;
+    private static final long TILE_KEY_POSITION_MASK = (1L << TILE_KEY_POSITION_BITS) - 1;
+    private static final long TILE_KEY_LEVEL_MASK = (1L << TILE_KEY_LEVEL_BITS) - 1;
+
+    private static long tileKey(int instanceId, int column, int row, int level) {
+        return ((long) instanceId << (2 * TILE_KEY_POSITION_BITS + TILE_KEY_LEVEL_BITS)) |
+            ((long) level << (2 * TILE_KEY_POSITION_BITS)) |
+            ((long) column << TILE_KEY_POSITION_BITS) |
+            row;
+    }
+
+    private static int tileKeyColumn(long key) {
+        return (int) ((key >>> TILE_KEY_POSITION_BITS) & TILE_KEY_POSITION_MASK);
+    }
+
+    private static int tileKeyRow(long key) {
+        return (int) (key & TILE_KEY_POSITION_MASK);
+    }
+
+    private static int tileKeyLevel(long key) {
+        return (int) ((key >>> (2 * TILE_KEY_POSITION_BITS)) & TILE_KEY_LEVEL_MASK);
+    }
+
+    // The tile without the instance, as it's known in the disk cache
+    private static long tileKeyPosition(long key) {
+        return key & ((1L << (2 * TILE_KEY_POSITION_BITS + TILE_KEY_LEVEL_BITS)) - 1);
+    }
+
+    // The area of the image covered by the tile, in image coordinates
+    private void setTileRect(Rect rect, int column, int row, int level) {
+        final int tileSize = mTileSize << level;
+        rect.set(column * tileSize, row * tileSize,
+            Math.min((column + 1) * tileSize, mIntrinsicWidth), Math.min((row + 1) * tileSize, mIntrinsicHeight));
+    }
+
     @Override
     protected void finalize() throws Throwable {
-        mDecoderWorker.quit();
+        recycle();
+        super.finalize();
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
@@ -295,53 +555,203 @@ public class TileBitmapDrawable extends Drawable {
         public void onEndInitialization();
     }
 
-    private static final class Tile {
+    // The tiles of an instance waiting to be decoded, without duplicates, and the ones being
+    // decoded. Not thread-safe.
+    private static final class TileQueue {
+
+        private static final long NONE = -1;
 
-        private final int mInstanceId;
-        private final Rect mTileRect;
-        private final int mHorizontalPos;
-        private final int mVerticalPos;
-        private final int mLevel;
+        private long[] mKeys = new long[64];
+        private float[] mDistances = new float[64];
+        private int mSize;
+        private final long[] mDecoding = new long[DECODER_THREADS];
 
-        private Tile(int instanceId, Rect tileRect, int horizontalPos, int verticalPos, int level) {
-            mInstanceId = instanceId;
-            mTileRect = new Rect();
-            mTileRect.set(tileRect);
-            mHorizontalPos = horizontalPos;
-            mVerticalPos = verticalPos;
-            mLevel = level;
+        private TileQueue() {
+            Arrays.fill(mDecoding, NONE);
         }
 
-        public String getKey() {
-            return "#" + mInstanceId + "#" + mHorizontalPos + "#" + mVerticalPos + "#" + mLevel;
+        public boolean isEmpty() {
+            return mSize == 0;
         }
 
-        @Override
-        public int hashCode() {
-            return getKey().hashCode();
+        public void add(long key, float distance) {
+            for(int i = 0; i < mDecoding.length; i++) {
+                if(mDecoding[i] == key) {
+                    return;
+                }
+            }
+            for(int i = 0; i < mSize; i++) {
+                if(mKeys[i] == key) {
+                    mDistances[i] = Math.min(mDistances[i], distance);
+                    return;
+                }
+            }
+            if(mSize == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mSize * 2);
+                mDistances = Arrays.copyOf(mDistances, mSize * 2);
+            }
+            mKeys[mSize] = key;
+            mDistances[mSize] = distance;
+            mSize++;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if(this == o) {
-                return true;
+        // The index of the tile closest to the centre of the viewport
+        public int nearest() {
+            int nearest = 0;
+            for(int i = 1; i < mSize; i++) {
+                if(mDistances[i] < mDistances[nearest]) {
+                    nearest = i;
+                }
+            }
+            return nearest;
+        }
+
+        public float distanceAt(int index) {
+            return mDistances[index];
+        }
+
+        // Hand the tile at index to the worker
+        public long take(int index, int worker) {
+            final long key = mKeys[index];
+            mSize--;
+            mKeys[index] = mKeys[mSize];
+            mDistances[index] = mDistances[mSize];
+            mDecoding[worker] = key;
+            return key;
+        }
+
+        public void done(int worker) {
+            mDecoding[worker] = NONE;
+        }
+
+        public void clear() {
+            mSize = 0;
+        }
+    }
+
+    // A LRU cache of the tiles keyed by their packed long key. The entries are recycled, so
+    // lookups and replacements don't allocate once the cache is full. Not thread-safe.
+    private static final class TileLruCache {
+
+        private static final class Entry {
+            long key;
+            Bitmap bitmap;
+            int size;
+            Entry next;     // in the bucket
+            Entry before;   // in the LRU list
+            Entry after;
+        }
+
+        private final int mMaxSize;
+        private int mSize;
+        private int mCount;
+        private Entry[] mBuckets = new Entry[64];
+        private final Entry mHead = new Entry();    // mHead.after is the eldest
+        private Entry mFreeEntries;
+
+        private TileLruCache(int maxSize) {
+            mMaxSize = maxSize;
+            mHead.before = mHead.after = mHead;
+        }
+
+        private static int hash(long key) {
+            final long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        public Bitmap get(long key) {
+            for(Entry e = mBuckets[hash(key) & (mBuckets.length - 1)]; e != null; e = e.next) {
+                if(e.key == key) {
+                    unlink(e);
+                    linkLast(e);
+                    return e.bitmap;
+                }
             }
-            if(o instanceof TileBitmapDrawable) {
-                return getKey().equals(((Tile) o).getKey());
+            return null;
+        }
+
+        public boolean contains(long key) {
+            for(Entry e = mBuckets[hash(key) & (mBuckets.length - 1)]; e != null; e = e.next) {
+                if(e.key == key) {
+                    return true;
+                }
             }
             return false;
         }
-    }
 
-    private static final class BitmapLruCache extends LruCache<String, Bitmap> {
+        public void put(long key, Bitmap bitmap) {
+            if(contains(key)) {
+                remove(key);
+            }
+
+            final int size = getBitmapSize(bitmap);
+            while(mSize + size > mMaxSize && mHead.after != mHead) {
+                remove(mHead.after.key);
+            }
+
+            Entry e = mFreeEntries;
+            if(e != null) {
+                mFreeEntries = e.next;
+            } else {
+                e = new Entry();
+            }
+            e.key = key;
+            e.bitmap = bitmap;
+            e.size = size;
 
-        private BitmapLruCache(int maxSize) {
-            super(maxSize);
+            if(mCount >= mBuckets.length * 3 / 4) {
+                resize(mBuckets.length * 2);
+            }
+            final int index = hash(key) & (mBuckets.length - 1);
+            e.next = mBuckets[index];
+            mBuckets[index] = e;
+            linkLast(e);
+            mSize += size;
+            mCount++;
         }
 
-        @Override
-        protected int sizeOf(String key, Bitmap value) {
-            return getBitmapSize(value);
+        private void remove(long key) {
+            final int index = hash(key) & (mBuckets.length - 1);
+            Entry prev = null;
+            for(Entry e = mBuckets[index]; e != null; prev = e, e = e.next) {
+                if(e.key == key) {
+                    if(prev == null) {
+                        mBuckets[index] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    unlink(e);
+                    mSize -= e.size;
+                    mCount--;
+
+                    e.bitmap = null;
+                    e.next = mFreeEntries;
+                    mFreeEntries = e;
+                    return;
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            final Entry[] buckets = new Entry[capacity];
+            for(Entry e = mHead.after; e != mHead; e = e.after) {
+                final int index = hash(e.key) & (capacity - 1);
+                e.next = buckets[index];
+                buckets[index] = e;
+            }
+            mBuckets = buckets;
+        }
+
+        private void unlink(Entry e) {
+            e.before.after = e.after;
+            e.after.before = e.before;
+        }
+
+        private void linkLast(Entry e) {
+            e.after = mHead;
+            e.before = mHead.before;
+            mHead.before.after = e;
+            mHead.before = e;
         }
 
         @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -356,14 +766,17 @@ public class TileBitmapDrawable extends Drawable {
         }
     }
 
-    private static final class InitializationTask extends AsyncTask<Object, Void, TileBitmapDrawable> {
+    private static final class InitializationTask extends AsyncTask<Object, Void, TileBitmapDrawable> implements View.OnAttachStateChangeListener {
 
         private final ImageView mImageView;
         private final OnInitializeListener mListener;
+        // The view went away while we were busy, nobody's going to recycle the drawable
+        private boolean mDetached;
 
         private InitializationTask(ImageView imageView, Drawable placeHolder, OnInitializeListener listener) {
             mImageView = imageView;
             mListener = listener;
+            mImageView.addOnAttachStateChangeListener(this);
 
             if(mListener != null) {
                 mListener.onStartInitialization();
@@ -373,8 +786,72 @@ public class TileBitmapDrawable extends Drawable {
             }
         }
 
+        @Override
+        public void onViewAttachedToWindow(View view) {
+            mDetached = false;
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View view) {
+            mDetached = true;
+        }
+
         @Override
         protected TileBitmapDrawable doInBackground(Object... params) {
+            final String path = params[0] instanceof String ? (String) params[0] : null;
+            final String cacheKey = params.length > 1 ? (String) params[1] : null;
+
+            // Only a path can be opened again for the tiles missing from the disk cache
+            TileDiskCache.Pyramid pyramid = null;
+            final TileDiskCache diskCache;
+            synchronized(sBitmapCacheLock) {
+                diskCache = sDiskCache;
+            }
+            if(path != null && cacheKey != null && diskCache != null) {
+                try {
+                    pyramid = diskCache.open(cacheKey);
+                } catch (IOException e) {
+                    Log.w(TAG, "opening the tile cache of " + cacheKey + " failed.", e);
+                }
+            }
+
+            BitmapRegionDecoder decoder = null;
+            boolean done = false;
+            try {
+                // We've been here before, skip decoding the whole image
+                if(pyramid != null && pyramid.isInitialized()) {
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Config.ARGB_8888;
+                    final Bitmap screenNail = pyramid.read(SCREEN_NAIL_ID, options);
+                    if(screenNail != null) {
+                        // Hold the image open now, it could be trimmed from its cache before the first missing tile
+                        try {
+                            decoder = BitmapRegionDecoder.newInstance(path, false);
+                        } catch (IOException e) {
+                            Log.w(TAG, "opening " + path + " failed, only the cached tiles are shown.", e);
+                        }
+                        final TileBitmapDrawable drawable = new TileBitmapDrawable(mImageView, decoder, path, pyramid.getWidth(), pyramid.getHeight(), screenNail, pyramid);
+                        done = true;
+                        return drawable;
+                    }
+                }
+
+                final TileBitmapDrawable drawable = openAndInitialize(params, path, pyramid);
+                done = true;
+                return drawable;
+            } finally {
+                if(!done) {
+                    if(decoder != null) {
+                        decoder.recycle();
+                    }
+                    if(pyramid != null) {
+                        pyramid.release();
+                    }
+                }
+            }
+        }
+
+        private TileBitmapDrawable openAndInitialize(Object[] params, String path, TileDiskCache.Pyramid pyramid) {
             BitmapRegionDecoder decoder = null;
 
             try {
@@ -389,6 +866,19 @@ public class TileBitmapDrawable extends Drawable {
                 throw new RuntimeException(e);
             }
 
+            boolean done = false;
+            try {
+                final TileBitmapDrawable drawable = initialize(decoder, path, pyramid);
+                done = true;
+                return drawable;
+            } finally {
+                if(!done) {
+                    decoder.recycle();
+                }
+            }
+        }
+
+        private TileBitmapDrawable initialize(BitmapRegionDecoder decoder, String path, TileDiskCache.Pyramid pyramid) {
             final DisplayMetrics metrics = new DisplayMetrics();
             final WindowManager wm = (WindowManager) mImageView.getContext().getSystemService(Context.WINDOW_SERVICE);
             wm.getDefaultDisplay().getMetrics(metrics);
@@ -407,77 +897,200 @@ public class TileBitmapDrawable extends Drawable {
             Bitmap screenNail = decoder.decodeRegion(screenNailRect, options);
             screenNail = Bitmap.createScaledBitmap(screenNail, Math.round(decoder.getWidth() * minScale), Math.round(decoder.getHeight() * minScale), true);
 
-            TileBitmapDrawable drawable = new TileBitmapDrawable(mImageView, decoder, screenNail);
+            if(pyramid != null) {
+                pyramid.initialize(decoder.getWidth(), decoder.getHeight());
+                pyramid.write(SCREEN_NAIL_ID, screenNail);
+            }
+
+            TileBitmapDrawable drawable = new TileBitmapDrawable(mImageView, decoder, path, decoder.getWidth(), decoder.getHeight(), screenNail, pyramid);
 
             return drawable;
         }
 
         @Override
         protected void onPostExecute(TileBitmapDrawable result) {
+            mImageView.removeOnAttachStateChangeListener(this);
             if(mListener != null) {
                 mListener.onEndInitialization();
             }
+            if(mDetached) {
+                // The decoders and the pyramid would be held until the drawable is finalized otherwise
+                result.recycle();
+                return;
+            }
             mImageView.setImageDrawable(result);
         }
     }
 
-    private static final class DecoderWorker extends Thread {
+    private static final class DecoderPool {
+
+        // The instances with tiles waiting to be decoded
+        private final ArrayList<TileBitmapDrawable> mPending = new ArrayList<>();
 
-        private final WeakReference<TileBitmapDrawable> mDrawableReference;
-        private final BitmapRegionDecoder mDecoder;
-        private final BlockingQueue<Tile> mDecodeQueue;
+        private DecoderPool(int threads) {
+            for(int i = 0; i < threads; i++) {
+                final DecoderWorker worker = new DecoderWorker(this, i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+
+        // Replace the tiles waiting to be decoded for the drawable, the ones being decoded are not decoded again
+        public synchronized void schedule(TileBitmapDrawable drawable, long[] keys, float[] distances, int count) {
+            drawable.mDecodeQueue.clear();
+            if(drawable.mRecycled) {
+                return;
+            }
+            for(int i = 0; i < count; i++) {
+                drawable.mDecodeQueue.add(keys[i], distances[i]);
+            }
+            if(drawable.mDecodeQueue.isEmpty()) {
+                mPending.remove(drawable);
+            } else {
+                if(!mPending.contains(drawable)) {
+                    mPending.add(drawable);
+                }
+                notifyAll();
+            }
+        }
+
+        public synchronized void cancel(TileBitmapDrawable drawable) {
+            drawable.mDecodeQueue.clear();
+            mPending.remove(drawable);
+        }
+
+        // Wait for the tile closest to the centre of its viewport among all the instances
+        public synchronized TileBitmapDrawable take(int worker, long[] outKey) throws InterruptedException {
+            while(mPending.isEmpty()) {
+                wait();
+            }
+
+            TileBitmapDrawable nearest = null;
+            int nearestIndex = 0;
+            for(int i = 0; i < mPending.size(); i++) {
+                final TileBitmapDrawable drawable = mPending.get(i);
+                final int index = drawable.mDecodeQueue.nearest();
+                if(nearest == null || drawable.mDecodeQueue.distanceAt(index) < nearest.mDecodeQueue.distanceAt(nearestIndex)) {
+                    nearest = drawable;
+                    nearestIndex = index;
+                }
+            }
+
+            outKey[0] = nearest.mDecodeQueue.take(nearestIndex, worker);
+            if(nearest.mDecodeQueue.isEmpty()) {
+                mPending.remove(nearest);
+            }
+            return nearest;
+        }
+
+        public synchronized void done(TileBitmapDrawable drawable, int worker) {
+            drawable.mDecodeQueue.done(worker);
+        }
+    }
+
+    private static final class DecoderWorker extends Thread {
 
-        private boolean mQuit;
+        private final DecoderPool mPool;
+        private final int mIndex;
+        private final Rect mTileRect = new Rect();
+        private final long[] mKey = new long[1];
 
-        private DecoderWorker(TileBitmapDrawable drawable, BitmapRegionDecoder decoder, BlockingQueue<Tile> decodeQueue) {
-            mDrawableReference = new WeakReference<TileBitmapDrawable>(drawable);
-            mDecoder = decoder;
-            mDecodeQueue = decodeQueue;
+        private DecoderWorker(DecoderPool pool, int index) {
+            super("TileDecoder-" + index);
+            mPool = pool;
+            mIndex = index;
         }
 
         @Override
         public void run() {
-            while(true) {
-                if(mDrawableReference.get() == null) {
-                    return;
-                }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
 
-                Tile tile;
+            while(true) {
+                TileBitmapDrawable drawable;
                 try {
-                    tile = mDecodeQueue.take();
+                    drawable = mPool.take(mIndex, mKey);
                 } catch (InterruptedException e) {
-                    if(mQuit) {
-                        return;
-                    }
                     continue;
                 }
 
-                synchronized(sBitmapCacheLock) {
-                    if(sBitmapCache.get(tile.getKey()) != null) {
-                        continue;
-                    }
+                try {
+                    decode(drawable, mKey[0], options);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "decoding a tile failed.", e);
+                } finally {
+                    mPool.done(drawable, mIndex);
                 }
+            }
+        }
 
-                final BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Config.ARGB_8888;
-                options.inPreferQualityOverSpeed = true;
-                options.inSampleSize =  (1 << tile.mLevel);
-
-                Bitmap bitmap;
-                synchronized(mDecoder) {
-                    bitmap = mDecoder.decodeRegion(tile.mTileRect, options);
+        private void decode(TileBitmapDrawable drawable, long key, BitmapFactory.Options options) {
+            synchronized(sBitmapCacheLock) {
+                if(sBitmapCache.contains(key)) {
+                    return;
                 }
+            }
 
-                synchronized(sBitmapCacheLock) {
-                    try { sBitmapCache.put(tile.getKey(), bitmap); }
-                    catch (NullPointerException ignored) { }
+            // The tiles on the disk are already scaled down
+            final TileDiskCache.Pyramid pyramid = drawable.mPyramid;
+            Bitmap bitmap = null;
+            if(pyramid != null) {
+                options.inSampleSize = 1;
+                bitmap = pyramid.read(tileKeyPosition(key), options);
+            }
+
+            boolean decoded = false;
+            if(bitmap == null) {
+                bitmap = decodeRegion(drawable, key, options);
+                if(bitmap == null) {
+                    if(!drawable.mRecycled) {
+                        synchronized(sBitmapCacheLock) {
+                            drawable.addFailedTile(key);
+                        }
+                    }
+                    return;
                 }
+                decoded = true;
+            }
+
+            synchronized(sBitmapCacheLock) {
+                sBitmapCache.put(key, bitmap);
+            }
+
+            // On the screen first, the next tile isn't held up by the compression either. The cached bitmaps are never
+            // recycled, and a released pyramid ignores the write
+            if(decoded && pyramid != null) {
+                final Bitmap tile = bitmap;
+                final long id = tileKeyPosition(key);
+                sDiskWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pyramid.write(id, tile);
+                    }
+                });
             }
         }
 
-        public void quit() {
-            mQuit = true;
-            interrupt();
+        private Bitmap decodeRegion(TileBitmapDrawable drawable, long key, BitmapFactory.Options options) {
+            final BitmapRegionDecoder decoder = drawable.getDecoder(mIndex);
+            if(decoder == null) {
+                return null;
+            }
+
+            final int level = tileKeyLevel(key);
+            drawable.setTileRect(mTileRect, tileKeyColumn(key), tileKeyRow(key), level);
+            options.inSampleSize = 1 << level;
+
+            synchronized(decoder) {
+                // recycle() might have got the decoder before us
+                if(drawable.mRecycled) {
+                    return null;
+                }
+                return decoder.decodeRegion(mTileRect, options);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,279 @@
+////////////////////////////////////////////////////////////////////////////////
+// ByakuGallery is an open source Android library that allows the visualization
+//     of large images with gesture capabilities.
+//     This lib is based on AOSP Camera2.
+//     Copyright 2013 Diego Carlos Lima
+//
+//     Licensed under the Apache License, Version 2.0 (the "License");
+//     you may not use this file except in compliance with the License.
+//     You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//     Unless required by applicable law or agreed to in writing, software
+//     distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+////////////////////////////////////////////////////////////////////////////////
+
+package com.diegocarloslima.byakugallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// Keeps the screen nail and the decoded tiles of the images shown by TileBitmapDrawable on the disk, so showing the same
+// image again doesn't decode the whole image for the screen nail, and the tiles seen before don't go through the region
+// decoder again.
+//
+// Each image gets a container file, <key>.tiles:
+//     header: magic, version, image width, image height (ints)
+//     records: tile id (long), length (int), the compressed tile
+// The records are only appended, a container stops growing once it reaches a quarter of the cache size. The least
+// recently used containers are removed when the cache grows larger than its size.
+public class TileDiskCache {
+
+    private static final String TAG = "TileDiskCache";
+
+    private static final String SUFFIX = ".tiles";
+    private static final int MAGIC = 0x54494c45; // "TILE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int JPEG_QUALITY = 90;
+    private static final float TRIM_TO = 0.9f;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // The containers in use, a container is only opened once so the records aren't appended from two places
+    private final HashMap<String, Pyramid> mOpened = new HashMap<>();
+
+    public TileDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    // Open the container of the image with key, it's created if there isn't one. Release it when done
+    synchronized Pyramid open(String key) throws IOException {
+        Pyramid pyramid = mOpened.get(key);
+        if(pyramid == null) {
+            mDirectory.mkdirs();
+            trim();
+
+            final File file = new File(mDirectory, key + SUFFIX);
+            file.setLastModified(System.currentTimeMillis());
+            pyramid = new Pyramid(this, key, file, mMaxSize / 4);
+            mOpened.put(key, pyramid);
+        }
+        pyramid.mReferences++;
+        return pyramid;
+    }
+
+    private synchronized void release(Pyramid pyramid) {
+        if(--pyramid.mReferences == 0) {
+            mOpened.remove(pyramid.mKey);
+            pyramid.close();
+        }
+    }
+
+    // Remove the least recently used containers that aren't open until we're below the size limit
+    private void trim() {
+        final File[] files = mDirectory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        long size = 0;
+        for(File file : files) {
+            size += file.length();
+        }
+        if(size <= mMaxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        final long target = (long) (mMaxSize * TRIM_TO);
+        for(File file : files) {
+            if(size <= target) {
+                break;
+            }
+            final String name = file.getName();
+            if(name.endsWith(SUFFIX) && mOpened.containsKey(name.substring(0, name.length() - SUFFIX.length()))) {
+                continue;
+            }
+            final long length = file.length();
+            if(file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    // The container of an image. Thread-safe
+    static final class Pyramid {
+
+        private final TileDiskCache mCache;
+        private final String mKey;
+        private final long mMaxSize;
+        private int mReferences;    // Guarded by mCache
+
+        private final RandomAccessFile mFile;
+        private long mLength;
+        private int mWidth;
+        private int mHeight;
+        private boolean mClosed;
+
+        // The offset of the record of each tile
+        private final LongSparseArray<Long> mOffsets = new LongSparseArray<>();
+
+        private Pyramid(TileDiskCache cache, String key, File file, long maxSize) throws IOException {
+            mCache = cache;
+            mKey = key;
+            mMaxSize = maxSize;
+            mFile = new RandomAccessFile(file, "rw");
+
+            final long length = mFile.length();
+            if(length < HEADER_SIZE || mFile.readInt() != MAGIC || mFile.readInt() != VERSION) {
+                mLength = 0;
+                mFile.setLength(0);
+                return;
+            }
+            mWidth = mFile.readInt();
+            mHeight = mFile.readInt();
+
+            // A record cut short, e.g. by a crash, ends the container
+            long offset = HEADER_SIZE;
+            while(offset + RECORD_HEADER_SIZE <= length) {
+                mFile.seek(offset);
+                final long id = mFile.readLong();
+                final int size = mFile.readInt();
+                if(size < 0 || offset + RECORD_HEADER_SIZE + size > length) {
+                    break;
+                }
+                mOffsets.put(id, offset);
+                offset += RECORD_HEADER_SIZE + size;
+            }
+            mLength = offset;
+            if(mLength != length) {
+                mFile.setLength(mLength);
+            }
+        }
+
+        public synchronized boolean isInitialized() {
+            return mLength >= HEADER_SIZE;
+        }
+
+        public synchronized int getWidth() {
+            return mWidth;
+        }
+
+        public synchronized int getHeight() {
+            return mHeight;
+        }
+
+        // Start an empty container for an image of width x height
+        public synchronized void initialize(int width, int height) {
+            if(mClosed || mLength >= HEADER_SIZE) {
+                return;
+            }
+            try {
+                mFile.seek(0);
+                mFile.writeInt(MAGIC);
+                mFile.writeInt(VERSION);
+                mFile.writeInt(width);
+                mFile.writeInt(height);
+                mLength = HEADER_SIZE;
+                mWidth = width;
+                mHeight = height;
+            } catch (IOException e) {
+                Log.w(TAG, "writing the header of " + mKey + " failed.", e);
+            }
+        }
+
+        // The tile with id, or null if we don't have it
+        public Bitmap read(long id, BitmapFactory.Options options) {
+            final byte[] data;
+            synchronized(this) {
+                final Long offset = mOffsets.get(id);
+                if(mClosed || offset == null) {
+                    return null;
+                }
+                try {
+                    mFile.seek(offset + 8);
+                    data = new byte[mFile.readInt()];
+                    mFile.readFully(data);
+                } catch (IOException e) {
+                    Log.w(TAG, "reading a tile of " + mKey + " failed.", e);
+                    return null;
+                }
+            }
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        // Keep the tile with id, unless we have it already or the container is full
+        public void write(long id, Bitmap bitmap) {
+            synchronized(this) {
+                if(mClosed || mLength < HEADER_SIZE || mLength >= mMaxSize || mOffsets.get(id) != null) {
+                    return;
+                }
+            }
+
+            // Compressing takes a while, don't hold up the readers meanwhile
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if(bitmap.hasAlpha()) {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+            final byte[] data = out.toByteArray();
+
+            synchronized(this) {
+                if(mClosed || mOffsets.get(id) != null) {
+                    return;
+                }
+                try {
+                    mFile.seek(mLength);
+                    mFile.writeLong(id);
+                    mFile.writeInt(data.length);
+                    mFile.write(data);
+                    mOffsets.put(id, mLength);
+                    mLength += RECORD_HEADER_SIZE + data.length;
+                } catch (IOException e) {
+                    Log.w(TAG, "writing a tile of " + mKey + " failed.", e);
+                    // Whatever made it to the disk is cut off the next time the container is opened
+                    mClosed = true;
+                }
+            }
+        }
+
+        public void release() {
+            mCache.release(this);
+        }
+
+        private synchronized void close() {
+            mClosed = true;
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closing " + mKey + " failed.", e);
+            }
+        }
+    }
+}
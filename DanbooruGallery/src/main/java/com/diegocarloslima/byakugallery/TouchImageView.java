@@ -37,6 +37,9 @@ public class TouchImageView extends ImageView {
 
     private static int ANIMATION_DURATION = 0;
 
+    // How far ahead the scale is predicted while pinching, in milliseconds
+    private static final float PINCH_PREDICTION_TIME = 250;
+
     private Drawable mDrawable;
     private int mDrawableIntrinsicWidth;
     private int mDrawableIntrinsicHeight;
@@ -105,6 +108,7 @@ public class TouchImageView extends ImageView {
                 final Animation animation = new TouchAnimation(targetScale, targetTranslationX, targetTranslationY);
                 animation.setDuration(ANIMATION_DURATION);
                 startAnimation(animation);
+                setPredictedMatrix(targetTranslationX, targetTranslationY, targetScale);
 
                 return true;
             }
@@ -157,6 +161,7 @@ public class TouchImageView extends ImageView {
                 animation.setDuration(mFlingScroller.getDuration());
                 animation.setInterpolator(new LinearInterpolator());
                 startAnimation(animation);
+                setPredictedMatrix(mFlingScroller.getFinalX(), mFlingScroller.getFinalY(), mScale);
 
                 return true;
             }
@@ -196,6 +201,7 @@ public class TouchImageView extends ImageView {
                 mLastFocusY = focusY;
 
                 clearAnimation();
+                predictScale(detector, focusX, focusY);
                 ViewCompat.postInvalidateOnAnimation(TouchImageView.this);
 
                 return true;
@@ -212,6 +218,8 @@ public class TouchImageView extends ImageView {
                 final float dy = computeTranslation(getMeasuredHeight(), currentDrawableHeight, mTranslationY, 0);
 
                 if(Math.abs(dx) < 1 && Math.abs(dy) < 1) {
+                    // The pinch stops right here
+                    clearPredictedMatrix();
                     return;
                 }
 
@@ -224,6 +232,7 @@ public class TouchImageView extends ImageView {
                 final Animation animation = new TouchAnimation(targetScale, targetTranslationX, targetTranslationY);
                 animation.setDuration(ANIMATION_DURATION);
                 startAnimation(animation);
+                setPredictedMatrix(targetTranslationX, targetTranslationY, targetScale);
 
                 mIsAnimatingBack = true;
             }
@@ -283,6 +292,36 @@ public class TouchImageView extends ImageView {
     public void clearAnimation() {
         super.clearAnimation();
         mIsAnimatingBack = false;
+        // Wherever the animation was heading to, we're not going there anymore
+        clearPredictedMatrix();
+    }
+
+    // Let a TileBitmapDrawable decode the tiles where we're heading to before we get there
+    private void setPredictedMatrix(float translationX, float translationY, float scale) {
+        if(mDrawable instanceof TileBitmapDrawable) {
+            ((TileBitmapDrawable) mDrawable).setPredictedMatrix(translationX, translationY, scale);
+        }
+    }
+
+    private void clearPredictedMatrix() {
+        if(mDrawable instanceof TileBitmapDrawable) {
+            ((TileBitmapDrawable) mDrawable).clearPredictedMatrix();
+        }
+    }
+
+    // Extrapolate the scale velocity of the pinch, so the next level of tiles is ready when the pinch gets there
+    private void predictScale(ScaleGestureDetector detector, float focusX, float focusY) {
+        final long timeDelta = detector.getTimeDelta();
+        final float scaleFactor = detector.getScaleFactor();
+        if(timeDelta <= 0 || scaleFactor == 1) {
+            return;
+        }
+
+        loadMatrixValues();
+        final double velocity = Math.log(scaleFactor) / timeDelta;
+        final float predictedScale = MathUtils.clamp((float) (mScale * Math.exp(velocity * PINCH_PREDICTION_TIME)), mMinScale, mMaxScale);
+        final float ratio = predictedScale / mScale;
+        setPredictedMatrix(focusX - (focusX - mTranslationX) * ratio, focusY - (focusY - mTranslationY) * ratio, predictedScale);
     }
 
     @Override
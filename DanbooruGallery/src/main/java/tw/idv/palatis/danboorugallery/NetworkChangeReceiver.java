@@ -36,7 +36,7 @@ public class NetworkChangeReceiver
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo info = cm.getActiveNetworkInfo();
         sIsConnectedOrConnecting = info != null && info.isConnectedOrConnecting();
-        Picasso.adjustThreadCount(info);
+        Picasso.onNetworkChanged(info, cm.isActiveNetworkMetered());
     }
 
     public static boolean isConnectedOrConnecting()
@@ -50,6 +50,6 @@ public class NetworkChangeReceiver
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo info = cm.getActiveNetworkInfo();
         sIsConnectedOrConnecting = info != null && info.isConnectedOrConnecting();
-        Picasso.adjustThreadCount(info);
+        Picasso.onNetworkChanged(info, cm.isActiveNetworkMetered());
     }
 }
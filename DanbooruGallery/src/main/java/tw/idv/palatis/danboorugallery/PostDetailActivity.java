@@ -38,12 +38,18 @@ import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import tw.idv.palatis.danboorugallery.android.content.CustomTaskLoader;
+import tw.idv.palatis.danboorugallery.database.PagedPostsCursor;
 import tw.idv.palatis.danboorugallery.database.PostsTable;
 import tw.idv.palatis.danboorugallery.model.Host;
 import tw.idv.palatis.danboorugallery.model.Post;
+import tw.idv.palatis.danboorugallery.picasso.Picasso;
 import tw.idv.palatis.danboorugallery.util.PostDetailPagerAdapter;
 import tw.idv.palatis.danboorugallery.util.SiteSession;
+import tw.idv.palatis.danboorugallery.util.Slideshow;
 import tw.idv.palatis.danboorugallery.util.SystemUiHider;
 import tw.idv.palatis.danboorugallery.util.UiHider;
 
@@ -64,6 +70,7 @@ public class PostDetailActivity
     private PostDetailPagerAdapter mPagerAdapter;
     private TextView mInfoText;
     private ImageButton mPlayPauseButton;
+    private Slideshow mSlideshow;
 
     @Override
     public void onPageScrolled(int position, float positionOffset, int positionOffsetPixels)
@@ -73,11 +80,15 @@ public class PostDetailActivity
     @Override
     public void onPageSelected(int position)
     {
+        if (position != mPosition)
+            mPreloadDirection = position > mPosition ? 1 : -1;
         mPosition = position;
         Cursor post_cursor = mPagerAdapter.getCursor(mPosition);
         if (post_cursor != null && post_cursor.getCount() != 0)
         {
             Host host = SiteSession.getHostById(post_cursor.getInt(PostsTable.INDEX_POST_HOST_ID));
+            if (host == null) // the row is gone, a new cursor is on its way
+                return;
             Post post = Post.fromCursor(host, post_cursor, null);
             mInfoText.setText(post.describeContent(this));
 
@@ -85,27 +96,70 @@ public class PostDetailActivity
             boolean forced = (position < 10) || (position > post_cursor.getCount() - 10);
             long created_at = post_cursor.getLong(PostsTable.INDEX_POST_CREATED_AT);
             SiteSession.fetchPosts(created_at, forced, null);
+
+            preloadNeighbours();
         }
     }
 
+    // the pager already loads the pages right next to the current one, preload the ones past
+    // them in the direction the user's going, the ones left behind are canceled.
+    private void preloadNeighbours()
+    {
+        int count = Picasso.getPreloadPageCount();
+        int first = mViewPager.getOffscreenPageLimit() + 1;
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = first; i < first + count; ++i)
+        {
+            int position = mPosition + mPreloadDirection * i;
+            if (position < 0 || position >= mPagerAdapter.getCount())
+                break;
+            Post post = getPost(position);
+            if (post != null)
+                posts.add(post);
+        }
+        Picasso.preload(getApplicationContext(), posts);
+    }
+
+    private Post getPost(int position)
+    {
+        Cursor cursor = mPagerAdapter.getCursor(position);
+        if (cursor == null || !cursor.moveToPosition(position))
+            return null;
+        Host host = SiteSession.getHostById(cursor.getInt(PostsTable.INDEX_POST_HOST_ID));
+        if (host == null)
+            return null;
+        return Post.fromCursor(host, cursor, null);
+    }
+
     @Override
     public void onPageScrollStateChanged(int state)
     {
     }
 
-    private Runnable mNextPageRunnable = new Runnable() {
+    private Slideshow.Callbacks mSlideshowCallbacks = new Slideshow.Callbacks()
+    {
+        @Override
+        public int getCount()
+        {
+            return mPagerAdapter.getCount();
+        }
+
         @Override
-        public void run()
+        public Post getPost(int position)
         {
-            int next = mViewPager.getCurrentItem() + 1;
-            if (next >= mViewPager.getAdapter().getCount())
-                next = 0;
-            int nextnext = next + 1;
-            if (nextnext >= mViewPager.getAdapter().getCount())
-                nextnext = 0;
-            mViewPager.getAdapter().instantiateItem(mViewPager, nextnext);
-            mViewPager.setCurrentItem(next, next != 0);
-            mViewPager.postDelayed(this, DanbooruGallerySettings.getAutoplayDelay());
+            return PostDetailActivity.this.getPost(position);
+        }
+
+        @Override
+        public int getCurrentPosition()
+        {
+            return mViewPager.getCurrentItem();
+        }
+
+        @Override
+        public void onAdvance(int position)
+        {
+            mViewPager.setCurrentItem(position, position != 0);
         }
     };
 
@@ -126,6 +180,7 @@ public class PostDetailActivity
     };
 
     private int mPosition;
+    private int mPreloadDirection = 1;
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle bundle)
@@ -139,7 +194,11 @@ public class PostDetailActivity
             }
 
             @Override
-            public void cleanUp(Cursor oldCursor) { }
+            public void cleanUp(Cursor oldCursor)
+            {
+                if (!oldCursor.isClosed())
+                    oldCursor.close();
+            }
         };
     }
 
@@ -150,16 +209,13 @@ public class PostDetailActivity
         {
             // tries to find the position in the new cursor
             Cursor oldCursor = mPagerAdapter.getCursor(mPosition);
-            if (oldCursor != null)
+            if (oldCursor != null && !oldCursor.isBeforeFirst() && !oldCursor.isAfterLast())
             {
-                int post_id = oldCursor.getInt(PostsTable.INDEX_POST_POST_ID);
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext())
-                    if (cursor.getInt(PostsTable.INDEX_POST_POST_ID) == post_id)
-                    {
-                        mPosition = cursor.getPosition();
-                        break;
-                    }
+                int position = ((PagedPostsCursor) cursor).getPositionOf(
+                    oldCursor.getLong(PostsTable.INDEX_POST_CREATED_AT),
+                    oldCursor.getInt(PostsTable.INDEX_POST_DATABASE_ID));
+                if (position != -1)
+                    mPosition = position;
             }
         }
 
@@ -167,8 +223,11 @@ public class PostDetailActivity
         mViewPager.setCurrentItem(mPosition, false);
         cursor.moveToPosition(mPosition);
         Host host = SiteSession.getHostById(cursor.getInt(PostsTable.INDEX_POST_HOST_ID));
-        Post post = Post.fromCursor(host, cursor, null);
-        mInfoText.setText(post.describeContent(PostDetailActivity.this));
+        if (host != null)
+            mInfoText.setText(Post.fromCursor(host, cursor, null).describeContent(PostDetailActivity.this));
+        preloadNeighbours();
+        // the positions have moved if newer posts came in.
+        mSlideshow.onDataSetChanged();
     }
 
     @Override
@@ -179,14 +238,24 @@ public class PostDetailActivity
 
     private boolean mIsAutoplaying = false;
 
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+
+        if (mPagerAdapter.getCount() > 0)
+            preloadNeighbours();
+    }
+
     @Override
     protected void onPause()
     {
         super.onPause();
+        Picasso.cancelPreloading();
 
         if (mIsAutoplaying)
         {
-            mViewPager.removeCallbacks(mNextPageRunnable);
+            mSlideshow.stop();
             getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
             mPlayPauseButton.setImageResource(android.R.drawable.ic_media_play);
         }
@@ -203,6 +272,7 @@ public class PostDetailActivity
         mControlsView = (LinearLayout) findViewById(R.id.post_detail_content_controls);
         mInfoText = (TextView) findViewById(R.id.post_detail_info);
         mPlayPauseButton = (ImageButton) findViewById(R.id.post_detail_button_autoplay);
+        mSlideshow = new Slideshow(this, mSlideshowCallbacks);
 
         mPlayPauseButton.setOnClickListener(new View.OnClickListener()
         {
@@ -212,14 +282,14 @@ public class PostDetailActivity
                 if (mIsAutoplaying = !mIsAutoplaying)
                 {
                     mPlayPauseButton.setImageResource(android.R.drawable.ic_media_pause);
-                    mViewPager.postDelayed(mNextPageRunnable, DanbooruGallerySettings.getAutoplayDelay());
+                    mSlideshow.start();
                     mUiHider.hide();
                     getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
                 }
                 else
                 {
                     mPlayPauseButton.setImageResource(android.R.drawable.ic_media_play);
-                    mViewPager.removeCallbacks(mNextPageRunnable);
+                    mSlideshow.stop();
                     getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
                 }
             }
@@ -245,7 +315,7 @@ public class PostDetailActivity
             {
                 if (mIsAutoplaying)
                 {
-                    mViewPager.removeCallbacks(mNextPageRunnable);
+                    mSlideshow.stop();
                     getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
                     mPlayPauseButton.setImageResource(android.R.drawable.ic_media_play);
                 }
@@ -378,7 +448,7 @@ public class PostDetailActivity
         mUiHider.toggle();
         if (mIsAutoplaying)
         {
-            mViewPager.removeCallbacks(mNextPageRunnable);
+            mSlideshow.stop();
             getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
             mPlayPauseButton.setImageResource(android.R.drawable.ic_media_play);
         }
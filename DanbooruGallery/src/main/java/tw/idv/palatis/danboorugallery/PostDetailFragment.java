@@ -47,10 +47,8 @@ import android.widget.ShareActionProvider;
 import com.diegocarloslima.byakugallery.TileBitmapDrawable;
 import com.diegocarloslima.byakugallery.TouchImageView;
 import com.squareup.picasso.Callback;
-import com.squareup.picasso.Downloader;
 
 import java.io.File;
-import java.io.IOException;
 
 import tw.idv.palatis.danboorugallery.android.content.CustomTaskLoader;
 import tw.idv.palatis.danboorugallery.database.PostTagsView;
@@ -143,80 +141,107 @@ public class PostDetailFragment
             // This is tricky, I hope someday Picasso will use something like TileBitmapDrawable
             // to load the image, so this whole part can be "simplified".
 
-            // load the preview into the preview imageview
-            Picasso.withPreview(getActivity().getApplicationContext())
+            // load the preview into the preview imageview, not from the thumbnail cache, its
+            // bitmaps are only for the grid.
+            Picasso.with(getActivity().getApplicationContext())
                 .load(mPost.file_url_preview)
                 .noFade()
                 .into(mPreviewImageView);
 
-            // FIXME: fake the referer
-            final String file_url_with_referer =
-                (DanbooruGallerySettings.getDownloadFullsize() ? mPost.file_url : mPost.file_url_large) +
-                "|" + mPost.getReferer();
+            loadImage();
+            getActivity().invalidateOptionsMenu();
+        }
+    }
 
-            // load the actual image to the imageview
-            Picasso.with(getActivity().getApplicationContext())
-                .load(file_url_with_referer)
-                .noFade()
-                .into(mImageView, new Callback()
+    private boolean mImageRequested = false;
+    private boolean mImageLoaded = false;
+
+    private void loadImage()
+    {
+        final String file_url_with_referer = Picasso.getFullImageUri(mPost);
+
+        // load the actual image to the imageview, the pages next to the current one can wait.
+        com.squareup.picasso.Picasso picasso = getUserVisibleHint() ?
+            Picasso.with(getActivity().getApplicationContext()) :
+            Picasso.withNeighbour(getActivity().getApplicationContext());
+        // each instance only cancels its own requests for the view.
+        Picasso.cancelRequest(mImageView);
+        mImageRequested = true;
+        mImageLoaded = false;
+        picasso
+            .load(file_url_with_referer)
+            .noFade()
+            .into(mImageView, new Callback()
+            {
+                @Override
+                public void onSuccess()
                 {
-                    @Override
-                    public void onSuccess()
+                    mImageLoaded = true;
+                    Drawable drawable = mImageView.getDrawable();
+                    if (drawable != null &&
+                        drawable.getIntrinsicWidth() <= DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE &&
+                        drawable.getIntrinsicHeight() <= DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE)
+                    {
+                        // ok, we're fine to display the image.
+                        mProgressBar.setVisibility(View.GONE);
+                        mPreviewImageView.setVisibility(View.GONE);
+                        // release the drawable as we don't want it anymore.
+                        mPreviewImageView.setImageDrawable(null);
+                        return;
+                    }
+
+                    Log.v(TAG, "Bitmap might be too big to be uploaded to a texture, try the alternative method.");
+                    if (getActivity() == null || getActivity().getApplicationContext() == null)
+                        return;
+
+                    // decode the regions straight from the cached file, a stream would be copied
+                    // into memory as a whole by BitmapRegionDecoder. the decoded tiles are kept by
+                    // the name of the file, it's the content key of the image if we know it.
+                    File file = Picasso.getCachedFile(getActivity().getApplicationContext(), file_url_with_referer);
+                    if (file == null)
+                    {
+                        Log.e(TAG, "the image just loaded isn't in the disk cache?");
+                        mProgressBar.setVisibility(View.GONE);
+                        mDownloadErrorIndicator.setVisibility(View.VISIBLE);
+                        return;
+                    }
+
+                    TileBitmapDrawable.attachTileBitmapDrawable(mImageView, file.getPath(), file.getName(), null, new TileBitmapDrawable.OnInitializeListener()
                     {
-                        Drawable drawable = mImageView.getDrawable();
-                        if (drawable != null &&
-                            drawable.getIntrinsicWidth() <= DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE &&
-                            drawable.getIntrinsicHeight() <= DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE)
+                        @Override
+                        public void onStartInitialization() { }
+
+                        @Override
+                        public void onEndInitialization()
                         {
-                            // ok, we're fine to display the image.
                             mProgressBar.setVisibility(View.GONE);
                             mPreviewImageView.setVisibility(View.GONE);
                             // release the drawable as we don't want it anymore.
                             mPreviewImageView.setImageDrawable(null);
-                            return;
                         }
+                    });
+                }
 
-                        Log.v(TAG, "Bitmap might be too big to be uploaded to a texture, try the alternative method.");
-                        try
-                        {
-                            if (getActivity() != null && getActivity().getApplicationContext() != null)
-                            {
-                                final Downloader.Response response = Picasso.getDownloader(getActivity().getApplicationContext()).load(Uri.parse(file_url_with_referer), true);
-
-                                TileBitmapDrawable.attachTileBitmapDrawable(mImageView, response.getInputStream(), null, new TileBitmapDrawable.OnInitializeListener()
-                                {
-                                    @Override
-                                    public void onStartInitialization() { }
-
-                                    @Override
-                                    public void onEndInitialization()
-                                    {
-                                        mProgressBar.setVisibility(View.GONE);
-                                        mPreviewImageView.setVisibility(View.GONE);
-                                        // release the drawable as we don't want it anymore.
-                                        mPreviewImageView.setImageDrawable(null);
-                                    }
-                                });
-                            }
-                        }
-                        catch (IOException ex)
-                        {
-                            Log.e(TAG, "Downloader thrown an exception?", ex);
-                            mProgressBar.setVisibility(View.GONE);
-                            mDownloadErrorIndicator.setVisibility(View.VISIBLE);
-                        }
-                    }
+                @Override
+                public void onError()
+                {
+                    mImageLoaded = true;
+                    Log.d(TAG, "wtf! download failed?");
+                    mProgressBar.setVisibility(View.GONE);
+                    mDownloadErrorIndicator.setVisibility(View.VISIBLE);
+                }
+            });
+    }
 
-                    @Override
-                    public void onError()
-                    {
-                        Log.d(TAG, "wtf! download failed?");
-                        mProgressBar.setVisibility(View.GONE);
-                        mDownloadErrorIndicator.setVisibility(View.VISIBLE);
-                    }
-                });
-            getActivity().invalidateOptionsMenu();
-        }
+    @Override
+    public void setUserVisibleHint(boolean isVisibleToUser)
+    {
+        super.setUserVisibleHint(isVisibleToUser);
+
+        // we've been waiting as a neighbour, now we're on the screen, jump the queue.
+        // if the neighbour's download is running already, the new request waits for it.
+        if (isVisibleToUser && mImageRequested && !mImageLoaded && mPost != null && getActivity() != null)
+            loadImage();
     }
 
     @Override
@@ -227,6 +252,7 @@ public class PostDetailFragment
 
         // set visible to allow user click
         mImageView.setVisibility(View.VISIBLE);
+        recycleTileDrawable();
         mImageView.setImageDrawable(null);
 
         mProgressBar.setVisibility(View.GONE);
@@ -379,6 +405,25 @@ public class PostDetailFragment
         return rootView;
     }
 
+    @Override
+    public void onDestroyView()
+    {
+        // the views are gone, don't keep downloading for them.
+        Picasso.cancelRequest(mImageView);
+        Picasso.cancelRequest(mPreviewImageView);
+        mImageRequested = false;
+        recycleTileDrawable();
+        super.onDestroyView();
+    }
+
+    private void recycleTileDrawable()
+    {
+        // the tile decoders hold the whole image, don't wait for the GC to let them go.
+        Drawable drawable = mImageView.getDrawable();
+        if (drawable instanceof TileBitmapDrawable)
+            ((TileBitmapDrawable) drawable).recycle();
+    }
+
     public static interface Callbacks
     {
         public void onImageClick();
@@ -36,7 +36,9 @@ import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -64,6 +66,7 @@ import tw.idv.palatis.danboorugallery.database.PostsTable;
 import tw.idv.palatis.danboorugallery.model.Host;
 import tw.idv.palatis.danboorugallery.model.Post;
 import tw.idv.palatis.danboorugallery.model.Tag;
+import tw.idv.palatis.danboorugallery.picasso.Picasso;
 import tw.idv.palatis.danboorugallery.siteapi.SiteAPIException;
 import tw.idv.palatis.danboorugallery.util.PostListAdapter;
 import tw.idv.palatis.danboorugallery.util.SiteSession;
@@ -133,9 +136,20 @@ public class PostListFragment
             case R.id.loader_search_tags:
                 return new CustomTaskLoader<Cursor>(getActivity().getApplicationContext()) {
                     @Override
-                    public Cursor runTaskInBackground(CancellationSignal signal)
+                    public Cursor runTaskInBackground(final CancellationSignal signal)
                     {
-                        return SiteSession.searchTags(signal);
+                        return SiteSession.searchTags(signal, new SiteSession.TagSearchCallback()
+                        {
+                            @Override
+                            public void onPartialResult(Cursor cursor)
+                            {
+                                // a newer search took over already.
+                                if (signal != null && signal.isCanceled())
+                                    return;
+                                if (mSearchView != null && mSearchView.getSuggestionsAdapter() != null)
+                                    mSearchView.getSuggestionsAdapter().swapCursor(cursor);
+                            }
+                        });
                     }
 
                     @Override
@@ -198,35 +212,173 @@ public class PostListFragment
         throw new IllegalArgumentException("No such loader (id = " + id + ")");
     }
 
+    // predictive prefetch
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+    private static final int MAX_PAGES_AHEAD = 4;
+    private static final long DEFAULT_FETCH_LATENCY = 2000; // ms
+    private static final long FETCH_TIMEOUT = 30000; // ms
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mLastFirstVisibleItem = -1;
+    private long mLastScrollTime = 0;
+    private float mScrollVelocity = 0.0f; // items per second, positive towards the older posts
+    private long mFetchStartTime = -1;
+    private long mFetchLatency = DEFAULT_FETCH_LATENCY;
+
+    private void fetchPosts(long created_at, boolean forced, int pages_ahead)
+    {
+        FetchPostsCallback callback = new FetchPostsCallback();
+        mFetchStartTime = callback.mStartTime;
+        mFetchPostsSignal = SiteSession.fetchPosts(created_at, forced, pages_ahead, callback);
+        // the callbacks are posted to this thread, none of them runs before this.
+        callback.mSignal = mFetchPostsSignal;
+    }
+
+    private boolean isFetching()
+    {
+        // canceled by whoever fetched after us, e.g. the detail view. a replaced job might never
+        // run, so it never reports back.
+        if (mFetchPostsSignal != null && mFetchPostsSignal.isCanceled())
+            return false;
+        // don't wait for a job gone quiet forever either.
+        return mFetchStartTime != -1 && SystemClock.uptimeMillis() - mFetchStartTime < FETCH_TIMEOUT;
+    }
+
     @Override
     public void onScrollStateChanged(AbsListView listView, int state)
     {
+        mScrollState = state;
+        if (state == SCROLL_STATE_IDLE)
+            mScrollVelocity = 0.0f;
     }
 
     private long mOldPostCreatedAt = -1;
+    private long mIdleFetchCreatedAt = -1;
+    private CancellationSignal mFetchPostsSignal = null;
     @Override
     public void onScroll(AbsListView listView, int firstVisibleItem, int visibleItemCount, int totalItemCount)
     {
+        long now = SystemClock.uptimeMillis();
+        if (firstVisibleItem != mLastFirstVisibleItem)
+        {
+            if (mLastFirstVisibleItem != -1 && now > mLastScrollTime && mScrollState != SCROLL_STATE_IDLE)
+            {
+                float velocity = (firstVisibleItem - mLastFirstVisibleItem) * 1000.0f / (now - mLastScrollTime);
+                mScrollVelocity += (velocity - mScrollVelocity) * VELOCITY_SMOOTHING;
+            }
+            mLastFirstVisibleItem = firstVisibleItem;
+            mLastScrollTime = now;
+        }
+
         int last = firstVisibleItem + visibleItemCount - 1;
         while (last >= 0 && !(mGridView.getItemAtPosition(last) instanceof Cursor))
             --last;
         Cursor cursor = (Cursor) mGridView.getItemAtPosition(last);
-        if (cursor != null && cursor.getCount() != 0)
+        if (cursor == null || cursor.getCount() == 0)
+            return;
+
+        long created_at = cursor.getLong(PostListAdapter.INDEX_POST_CREATED_AT);
+
+        // the user is not looking for anything new, unless the end is on the screen already,
+        // e.g. the filtered pages don't fill the screen. once for each last post, the hosts
+        // might have nothing more to give.
+        if (mScrollState == SCROLL_STATE_IDLE)
         {
-            long created_at = cursor.getLong(PostListAdapter.INDEX_POST_CREATED_AT);
-            if (mOldPostCreatedAt != created_at)
+            if (firstVisibleItem + visibleItemCount > totalItemCount - visibleItemCount &&
+                mIdleFetchCreatedAt != created_at && !isFetching())
             {
-                if (firstVisibleItem < visibleItemCount)
-                    // first page
-                    SiteSession.fetchPosts(created_at, true, mPostLoadingCallback);
-                else if (firstVisibleItem + visibleItemCount > totalItemCount - visibleItemCount)
-                    // last page, give 0 to includes filtered posts
-                    SiteSession.fetchPosts(0, true, mPostLoadingCallback);
-                else
-                    // middle
-                    SiteSession.fetchPosts(created_at, false, mPostLoadingCallback);
-                mOldPostCreatedAt = created_at;
+                mIdleFetchCreatedAt = created_at;
+                // last page, give 0 to includes filtered posts
+                fetchPosts(0, true, 1);
             }
+            return;
+        }
+
+        if (mOldPostCreatedAt == created_at)
+            return;
+        mOldPostCreatedAt = created_at;
+
+        if (mScrollVelocity > 0.0f)
+        {
+            // estimate when the user reaches the end, and fetch enough pages to cover the time
+            // the fetching takes, twice for safety.
+            int remaining = totalItemCount - (firstVisibleItem + visibleItemCount);
+            float latency = mFetchLatency * 2 / 1000.0f;
+            if (remaining < visibleItemCount || remaining / mScrollVelocity < latency)
+            {
+                if (isFetching())
+                    return;
+
+                int pageLimit = Math.max(SiteSession.getPageLimitOfAllHosts(), 1);
+                int pages_ahead = (int) Math.ceil(mScrollVelocity * latency / pageLimit);
+                pages_ahead = Math.max(1, Math.min(pages_ahead, MAX_PAGES_AHEAD));
+
+                // last page, give 0 to includes filtered posts
+                fetchPosts(0, true, pages_ahead);
+                return;
+            }
+        }
+        else if (mScrollVelocity < 0.0f && firstVisibleItem < visibleItemCount)
+        {
+            // back to the first page, look for the newest posts.
+            if (!isFetching())
+                fetchPosts(created_at, true, 1);
+            return;
+        }
+
+        // middle, only if no fetch is running, the host pages are checked by SiteSession.
+        if (!isFetching())
+            fetchPosts(created_at, false, 0);
+    }
+
+    /**
+     * the callback of a single fetch, only the newest fetch tells how long fetching takes.
+     */
+    private class FetchPostsCallback
+        implements SiteSession.LoadingCallback
+    {
+        private final long mStartTime = SystemClock.uptimeMillis();
+        private CancellationSignal mSignal = null;
+
+        @Override
+        public void onPreExecute()
+        {
+            mPostLoadingCallback.onPreExecute();
+        }
+
+        @Override
+        public void onHostProgressUpdate(Host host, int progress)
+        {
+            mPostLoadingCallback.onHostProgressUpdate(host, progress);
+        }
+
+        @Override
+        public void onProgressUpdate(int progress)
+        {
+            mPostLoadingCallback.onProgressUpdate(progress);
+        }
+
+        @Override
+        public void onPostExecute()
+        {
+            // a superseded fetch finishing says nothing, the newer one is still running.
+            if (mSignal != null && mSignal == mFetchPostsSignal)
+            {
+                // a canceled one didn't run to the end, it says nothing about the latency.
+                if (!mSignal.isCanceled())
+                {
+                    long latency = SystemClock.uptimeMillis() - mStartTime;
+                    mFetchLatency += (latency - mFetchLatency) / 4;
+                }
+                mFetchStartTime = -1;
+            }
+            mPostLoadingCallback.onPostExecute();
+        }
+
+        @Override
+        public void onError(SiteAPIException error)
+        {
+            mPostLoadingCallback.onError(error);
         }
     }
 
@@ -364,6 +516,13 @@ public class PostListFragment
             }
         }
 
+        @Override
+        public void onHostProgressUpdate(Host host, int progress)
+        {
+            if (isAdded())
+                mLoadingIndicatorView.setText(getString(R.string.gallery_grid_loading_host_finished, host.name, progress));
+        }
+
         @Override
         public void onProgressUpdate(int progress)
         {
@@ -377,6 +536,9 @@ public class PostListFragment
         @Override
         public void onPostExecute()
         {
+            // look again on the next scroll, the end might be still ahead.
+            mOldPostCreatedAt = -1;
+
             ViewPropertyAnimator animator = mLoadingIndicatorView.animate();
             if (animator != null)
             {
@@ -565,6 +727,8 @@ public class PostListFragment
             public boolean onQueryTextChange(String query)
             {
                 SiteSession.setTagSearchPattern(query);
+                // the local suggestions right away, the hosts are merged in when they answer.
+                mSearchView.getSuggestionsAdapter().swapCursor(SiteSession.searchLocalTags());
                 getLoaderManager().restartLoader(R.id.loader_search_tags, null, PostListFragment.this);
                 return false;
             }
@@ -616,6 +780,29 @@ public class PostListFragment
         return super.onOptionsItemSelected(item);
     }
 
+    private View.OnLayoutChangeListener mOnGridLayoutChangeListener = new View.OnLayoutChangeListener()
+    {
+        @Override
+        public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom)
+        {
+            int size = mGridView.getColumnWidth();
+            if (size <= 0 || size == Picasso.getThumbnailSize())
+                return;
+
+            Picasso.setThumbnailSize(size);
+            // we're in the middle of a layout, rebind the thumbnails after it.
+            mGridView.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mPostListAdapter.notifyDataSetChanged();
+                }
+            });
+        }
+    };
+
     private DataSetObserver mHostsObserver;
     private DataSetObserver mPostsObserver;
     private TextView mLoadingIndicatorView;
@@ -634,6 +821,11 @@ public class PostListFragment
         mGridView.setChoiceMode(GridView.CHOICE_MODE_NONE);
         mGridView.setNumColumns(mCallbacks.getPreferredNumColumns());
         mGridView.setAdapter(mPostListAdapter);
+        // the thumbnails are decoded to the size of the cells, guess it from the screen until
+        // the grid is laid out.
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        Picasso.setThumbnailSize(metrics.widthPixels / mCallbacks.getPreferredNumColumns());
+        mGridView.addOnLayoutChangeListener(mOnGridLayoutChangeListener);
         mGridView.setOnScrollListener(this);
         mGridView.setOnItemClickListener(this);
         mGridView.setOnItemLongClickListener(this);
@@ -645,7 +837,7 @@ public class PostListFragment
             {
                 getLoaderManager().restartLoader(R.id.loader_post_ids, null, PostListFragment.this);
                 getLoaderManager().restartLoader(R.id.loader_search_tags, null, PostListFragment.this);
-                SiteSession.fetchPosts(-1, true, mPostLoadingCallback);
+                fetchPosts(-1, true, 1);
                 super.onChanged();
             }
 
@@ -679,7 +871,7 @@ public class PostListFragment
         PostsTable.registerDataSetObserver(mPostsObserver);
 
         getLoaderManager().initLoader(R.id.loader_post_ids, null, this);
-        SiteSession.fetchPosts(-1, true, mPostLoadingCallback);
+        fetchPosts(-1, true, 1);
 
         return rootView;
     }
@@ -687,6 +879,9 @@ public class PostListFragment
     @Override
     public void onDestroyView()
     {
+        // nobody is going to see these posts.
+        if (mFetchPostsSignal != null)
+            mFetchPostsSignal.cancel();
         PostsTable.unregisterDataSetObserver(mPostsObserver);
         HostsTable.unregisterDataSetObserver(mHostsObserver);
         DanbooruGallerySettings.unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
@@ -19,6 +19,7 @@
 package tw.idv.palatis.danboorugallery.android.view;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
@@ -26,6 +27,13 @@ import android.widget.ImageView;
 public final class SquaredImageView
     extends ImageView
 {
+    public interface OnDrawableChangedListener
+    {
+        public void onDrawableChanged(SquaredImageView view, Drawable oldDrawable, Drawable newDrawable);
+    }
+
+    private OnDrawableChangedListener mOnDrawableChangedListener = null;
+
     public SquaredImageView(Context context)
     {
         super(context);
@@ -41,6 +49,34 @@ public final class SquaredImageView
         super(context, attrs, defStyle);
     }
 
+    public void setOnDrawableChangedListener(OnDrawableChangedListener listener)
+    {
+        mOnDrawableChangedListener = listener;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable)
+    {
+        Drawable oldDrawable = getDrawable();
+        super.setImageDrawable(drawable);
+        notifyDrawableChanged(oldDrawable);
+    }
+
+    @Override
+    public void setImageResource(int resId)
+    {
+        Drawable oldDrawable = getDrawable();
+        super.setImageResource(resId);
+        notifyDrawableChanged(oldDrawable);
+    }
+
+    private void notifyDrawableChanged(Drawable oldDrawable)
+    {
+        Drawable newDrawable = getDrawable();
+        if (mOnDrawableChangedListener != null && oldDrawable != newDrawable)
+            mOnDrawableChangedListener.onDrawableChanged(this, oldDrawable, newDrawable);
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
     {
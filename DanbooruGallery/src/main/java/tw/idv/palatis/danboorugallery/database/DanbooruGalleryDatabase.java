@@ -19,6 +19,7 @@
 package tw.idv.palatis.danboorugallery.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -46,7 +47,7 @@ public class DanbooruGalleryDatabase
         PostTagsView.init(db);
     }
 
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 8;
     public static final String DATABASE_NAME = "DanbooruGalleryDatabase.db";
 
     // Persistent
@@ -81,15 +82,14 @@ public class DanbooruGalleryDatabase
     private static final String SQL_CREATE_TABLE_TAGS =
         "CREATE TABLE IF NOT EXISTS " + Tag.MAIN_TABLE_NAME + " (" +
             Tag.KEY_TAG_DATABASE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
-            Tag.KEY_TAG_HASHCODE + " INTEGER UNIQUE NOT NULL," +
-            Tag.KEY_TAG_NAME + " TEXT NOT NULL," +
+            Tag.KEY_TAG_NAME + " TEXT UNIQUE NOT NULL," +
             Tag.KEY_TAG_SEARCH_COUNT + " INTEGER NOT NULL" +
         ");";
     private static final String SQL_CREATE_TABLE_POST_TAGS_LINK =
         "CREATE TABLE IF NOT EXISTS " + PostTagsLinkTable.TABLE_NAME + " (" +
             PostTagsLinkTable.KEY_LINK_DATABASE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
             PostTagsLinkTable.KEY_POST_DATABASE_ID + " INTEGER NOT NULL," +
-            PostTagsLinkTable.KEY_TAG_HASHCODE + " INTEGER NOT NULL" +
+            PostTagsLinkTable.KEY_TAG_DATABASE_ID + " INTEGER NOT NULL" +
         ");";
     private static final String SQL_CREATE_VIEW_POST_TAGS =
         "CREATE VIEW IF NOT EXISTS " + PostTagsView.VIEW_NAME + " AS " +
@@ -100,19 +100,28 @@ public class DanbooruGalleryDatabase
             Tag.MAIN_TABLE_NAME + "," +
             PostTagsLinkTable.TABLE_NAME + " " +
         "WHERE " +
-            PostTagsLinkTable.MAIN_TABLE_NAME + "." + PostTagsLinkTable.KEY_TAG_HASHCODE + " == " + Tag.MAIN_TABLE_NAME + "." + Tag.KEY_TAG_HASHCODE +
+            PostTagsLinkTable.MAIN_TABLE_NAME + "." + PostTagsLinkTable.KEY_TAG_DATABASE_ID + " == " + Tag.MAIN_TABLE_NAME + "." + Tag.KEY_TAG_DATABASE_ID +
         ";";
-    private static final String SQL_CREATE_INDEX_TAGS_HASHCODE =
+    // tags.name is UNIQUE, which comes with an index already.
+    // both post_tags_link indexes cover the whole (post_id, tag_id) pair, so the filter
+    // subqueries and the post_tags view never touch the table itself.
+    private static final String SQL_CREATE_INDEX_POST_TAGS_LINK_TAG_ID =
         "CREATE INDEX IF NOT EXISTS " +
-            Tag.MAIN_TABLE_NAME + "__" + Tag.KEY_TAG_HASHCODE + " " +
-        "ON " + Tag.TABLE_NAME + " (" +
-            Tag.KEY_TAG_HASHCODE +
+            PostTagsLinkTable.MAIN_TABLE_NAME + "__" + PostTagsLinkTable.KEY_TAG_DATABASE_ID + "__" + PostTagsLinkTable.KEY_POST_DATABASE_ID + " " +
+        "ON " + PostTagsLinkTable.TABLE_NAME + " (" +
+            PostTagsLinkTable.KEY_TAG_DATABASE_ID + "," + PostTagsLinkTable.KEY_POST_DATABASE_ID +
         ");";
-    private static final String SQL_CREATE_INDEX_POST_TAGS_LINK_HASHCODE =
+    private static final String SQL_CREATE_INDEX_POST_TAGS_LINK_POST_ID =
         "CREATE INDEX IF NOT EXISTS " +
-            PostTagsLinkTable.MAIN_TABLE_NAME + "__" + PostTagsLinkTable.KEY_TAG_HASHCODE + " " +
+            PostTagsLinkTable.MAIN_TABLE_NAME + "__" + PostTagsLinkTable.KEY_POST_DATABASE_ID + "__" + PostTagsLinkTable.KEY_TAG_DATABASE_ID + " " +
         "ON " + PostTagsLinkTable.TABLE_NAME + " (" +
-            PostTagsLinkTable.KEY_TAG_HASHCODE +
+            PostTagsLinkTable.KEY_POST_DATABASE_ID + "," + PostTagsLinkTable.KEY_TAG_DATABASE_ID +
+        ");";
+    private static final String SQL_CREATE_INDEX_POSTS_HOST_ID_POST_ID =
+        "CREATE INDEX IF NOT EXISTS " +
+            Post.MAIN_TABLE_NAME + "__" + Post.KEY_POST_HOST_ID + "__" + Post.KEY_POST_ID + " " +
+        "ON " + Post.TABLE_NAME + " (" +
+            Post.KEY_POST_HOST_ID + "," + Post.KEY_POST_ID +
         ");";
     private static final String SQL_CREATE_INDEX_POSTS_CREATED_AT =
         "CREATE INDEX IF NOT EXISTS " +
@@ -138,6 +147,20 @@ public class DanbooruGalleryDatabase
             Post.KEY_POST_RATING + " TEXT NOT NULL," +
             Post.KEY_POST_EXTRA_INFO + " TEXT NOT NULL" +
         ");";
+    // the grid is ordered by created_at, the positions are loaded per host ordered by created_at,
+    // and the posts of a host are dropped by host_id.
+    private static final String SQL_CREATE_MEMORY_INDEX_POSTS_CREATED_AT =
+        "CREATE INDEX IF NOT EXISTS " +
+            Post.MEMORY_TABLE_NAME + "__" + Post.KEY_POST_CREATED_AT + " " +
+        "ON " + Post.TABLE_NAME + " (" +
+            Post.KEY_POST_CREATED_AT +
+        ");";
+    private static final String SQL_CREATE_MEMORY_INDEX_POSTS_HOST_ID_CREATED_AT =
+        "CREATE INDEX IF NOT EXISTS " +
+            Post.MEMORY_TABLE_NAME + "__" + Post.KEY_POST_HOST_ID + "__" + Post.KEY_POST_CREATED_AT + " " +
+        "ON " + Post.TABLE_NAME + " (" +
+            Post.KEY_POST_HOST_ID + "," + Post.KEY_POST_CREATED_AT +
+        ");";
 
     public DanbooruGalleryDatabase(Context context)
     {
@@ -152,6 +175,8 @@ public class DanbooruGalleryDatabase
         try
         {
             db.execSQL(SQL_CREATE_MEMORY_TABLE_POSTS);
+            db.execSQL(SQL_CREATE_MEMORY_INDEX_POSTS_CREATED_AT);
+            db.execSQL(SQL_CREATE_MEMORY_INDEX_POSTS_HOST_ID_CREATED_AT);
             db.setTransactionSuccessful();
         }
         finally
@@ -160,6 +185,33 @@ public class DanbooruGalleryDatabase
         }
     }
 
+    /**
+     * complain loudly in the debug builds when a lookup stops using its index,
+     * e.g. after the schema, the query or the filter is changed.
+     * the callers pass the statements exactly as they run them.
+     */
+    static void checkQueryPlan(SQLiteDatabase db, String sql, String[] args)
+    {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try
+        {
+            int column = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext())
+            {
+                String detail = plan.getString(column);
+                // scanning a subquery or a compound (INTERSECT) result is fine, scanning a table
+                // without an index or sorting in a temp b-tree is not.
+                boolean scan = detail.startsWith("SCAN") && !detail.contains(" USING ") && !detail.toUpperCase().contains("SUBQUERY");
+                if (scan || detail.contains("TEMP B-TREE FOR"))
+                    Log.w(TAG, "Query plan regressed: " + detail + " for " + sql);
+            }
+        }
+        finally
+        {
+            plan.close();
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db)
     {
@@ -176,10 +228,12 @@ public class DanbooruGalleryDatabase
             db.execSQL(SQL_CREATE_TABLE_POST_TAGS_LINK);
             Log.v(TAG, "Creating: " + SQL_CREATE_VIEW_POST_TAGS);
             db.execSQL(SQL_CREATE_VIEW_POST_TAGS);
-            Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_TAGS_HASHCODE);
-            db.execSQL(SQL_CREATE_INDEX_TAGS_HASHCODE);
-            Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_POST_TAGS_LINK_HASHCODE);
-            db.execSQL(SQL_CREATE_INDEX_POST_TAGS_LINK_HASHCODE);
+            Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_POST_TAGS_LINK_TAG_ID);
+            db.execSQL(SQL_CREATE_INDEX_POST_TAGS_LINK_TAG_ID);
+            Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_POST_TAGS_LINK_POST_ID);
+            db.execSQL(SQL_CREATE_INDEX_POST_TAGS_LINK_POST_ID);
+            Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_POSTS_HOST_ID_POST_ID);
+            db.execSQL(SQL_CREATE_INDEX_POSTS_HOST_ID_POST_ID);
             Log.v(TAG, "Creating: " + SQL_CREATE_INDEX_POSTS_CREATED_AT);
             db.execSQL(SQL_CREATE_INDEX_POSTS_CREATED_AT);
             db.setTransactionSuccessful();
@@ -194,15 +248,48 @@ public class DanbooruGalleryDatabase
         "ALTER TABLE " + Tag.MAIN_TABLE_NAME + " " +
         "ADD COLUMN " + Tag.KEY_TAG_SEARCH_COUNT + " INTEGER NOT NULL DEFAULT 0;",
     };
+    // the view is re-created by onCreate() after all the upgrades.
     private static final String[] SQL_UPGRADE_TO_V5 = new String[] {
         "DROP VIEW IF EXISTS " + PostTagsView.VIEW_NAME + ";",
-        SQL_CREATE_VIEW_POST_TAGS,
+    };
+    // replace the String.hashCode() tag keys with tags._id, the old columns are spelled out
+    // since they are gone from the model.
+    private static final String[] SQL_UPGRADE_TO_V7 = new String[] {
+        "DROP VIEW IF EXISTS " + PostTagsView.VIEW_NAME + ";",
+        "DROP INDEX IF EXISTS " + Tag.MAIN_TABLE_NAME + "__hashcode;",
+        "DROP INDEX IF EXISTS " + PostTagsLinkTable.MAIN_TABLE_NAME + "__tag_hashcode;",
+        "ALTER TABLE " + Tag.MAIN_TABLE_NAME + " RENAME TO " + Tag.TABLE_NAME + "_v6;",
+        "ALTER TABLE " + PostTagsLinkTable.MAIN_TABLE_NAME + " RENAME TO " + PostTagsLinkTable.TABLE_NAME + "_v6;",
+        SQL_CREATE_TABLE_TAGS,
+        SQL_CREATE_TABLE_POST_TAGS_LINK,
+        // hashcode was UNIQUE, so are the names. keep the ids.
+        "INSERT INTO " + Tag.MAIN_TABLE_NAME + " (" +
+            Tag.KEY_TAG_DATABASE_ID + "," + Tag.KEY_TAG_NAME + "," + Tag.KEY_TAG_SEARCH_COUNT +
+        ") " +
+        "SELECT " +
+            Tag.KEY_TAG_DATABASE_ID + "," + Tag.KEY_TAG_NAME + "," + Tag.KEY_TAG_SEARCH_COUNT + " " +
+        "FROM " + Tag.MAIN_TABLE_NAME + "_v6;",
+        "INSERT INTO " + PostTagsLinkTable.MAIN_TABLE_NAME + " (" +
+            PostTagsLinkTable.KEY_POST_DATABASE_ID + "," + PostTagsLinkTable.KEY_TAG_DATABASE_ID +
+        ") " +
+        "SELECT " +
+            "l." + PostTagsLinkTable.KEY_POST_DATABASE_ID + "," +
+            "t." + Tag.KEY_TAG_DATABASE_ID + " " +
+        "FROM " +
+            PostTagsLinkTable.MAIN_TABLE_NAME + "_v6 AS l," +
+            Tag.MAIN_TABLE_NAME + "_v6 AS t " +
+        "WHERE l.tag_hashcode == t.hashcode;",
+        "DROP TABLE " + Tag.MAIN_TABLE_NAME + "_v6;",
+        "DROP TABLE " + PostTagsLinkTable.MAIN_TABLE_NAME + "_v6;",
+    };
+    // the new covering indexes are created by onCreate(), the tag_id one is superseded.
+    private static final String[] SQL_UPGRADE_TO_V8 = new String[] {
+        "DROP INDEX IF EXISTS " + PostTagsLinkTable.MAIN_TABLE_NAME + "__" + PostTagsLinkTable.KEY_TAG_DATABASE_ID + ";",
     };
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
         Log.v(TAG, String.format("Upgrading from version %d to %d.", oldVersion, newVersion));
-        onCreate(db);
         db.beginTransaction();
         try
         {
@@ -218,12 +305,27 @@ public class DanbooruGalleryDatabase
                     Log.d(TAG, "Upgrading... " + sql);
                     db.execSQL(sql);
                 }
+            if (oldVersion < 7)
+                for (String sql : SQL_UPGRADE_TO_V7)
+                {
+                    Log.d(TAG, "Upgrading... " + sql);
+                    db.execSQL(sql);
+                }
+            if (oldVersion < 8)
+                for (String sql : SQL_UPGRADE_TO_V8)
+                {
+                    Log.d(TAG, "Upgrading... " + sql);
+                    db.execSQL(sql);
+                }
             db.setTransactionSuccessful();
         }
         finally
         {
             db.endTransaction();
         }
+        // create the new tables, views and indexes after the old ones are migrated,
+        // so the new indexes don't end up on the old columns.
+        onCreate(db);
     }
 
     @Override
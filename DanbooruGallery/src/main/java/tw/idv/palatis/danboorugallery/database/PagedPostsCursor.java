@@ -0,0 +1,368 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tw.idv.palatis.danboorugallery.model.Post;
+
+import static tw.idv.palatis.danboorugallery.BuildConfig.DEBUG;
+
+/**
+ * A read-only view of temp.posts ordered by (created_at, _id) descending.
+ * Rows are loaded in pages of {@link #PAGE_SIZE}, each page is located by the key of its
+ * neighbours instead of an OFFSET, and only the {@link #MAX_PAGES} most recently used
+ * pages are kept, so the memory usage doesn't grow with the position.
+ * A position whose row is gone (the table changed since the count) reads as a row of nulls,
+ * with host_id 0, until the loader brings the next cursor.
+ */
+public class PagedPostsCursor
+    extends AbstractCursor
+{
+    private static final String TAG = "PagedPostsCursor";
+
+    private static final int PAGE_SIZE = 128;
+    private static final int MAX_PAGES = 4;
+
+    private static final String ORDER_DESC = Post.KEY_POST_CREATED_AT + " DESC," + Post.KEY_POST_DATABASE_ID + " DESC";
+    private static final String ORDER_ASC = Post.KEY_POST_CREATED_AT + " ASC," + Post.KEY_POST_DATABASE_ID + " ASC";
+    // rows sorted after (created_at, _id), inclusive or not
+    private static final String SELECTION_FROM_INCLUSIVE =
+        "(" + Post.KEY_POST_CREATED_AT + " < ? OR (" + Post.KEY_POST_CREATED_AT + " == ? AND " + Post.KEY_POST_DATABASE_ID + " <= ?))";
+    private static final String SELECTION_AFTER =
+        "(" + Post.KEY_POST_CREATED_AT + " < ? OR (" + Post.KEY_POST_CREATED_AT + " == ? AND " + Post.KEY_POST_DATABASE_ID + " < ?))";
+    // rows sorted before (created_at, _id)
+    private static final String SELECTION_BEFORE =
+        "(" + Post.KEY_POST_CREATED_AT + " > ? OR (" + Post.KEY_POST_CREATED_AT + " == ? AND " + Post.KEY_POST_DATABASE_ID + " > ?))";
+    private static final String[] sKeyColumns = new String[] {
+        Post.KEY_POST_CREATED_AT, Post.KEY_POST_DATABASE_ID,
+    };
+    private static final String[] sCountColumns = new String[] { "COUNT()" };
+
+    private SQLiteDatabase mDatabase;
+    private String[] mColumns;
+    private String[] mQueryColumns;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private int mCount;
+
+    // the keys of the first and the last row of each page, _id == 0 means unknown.
+    // (AUTOINCREMENT starts from 1)
+    private long[] mFirstCreatedAt;
+    private int[] mFirstId;
+    private long[] mLastCreatedAt;
+    private int[] mLastId;
+
+    private final LinkedHashMap<Integer, Cursor> mPages = new LinkedHashMap<>(MAX_PAGES + 1, 0.75f, true);
+    private Cursor mPage;
+
+    PagedPostsCursor(SQLiteDatabase database, String[] columns, String selection, String[] selectionArgs)
+    {
+        mDatabase = database;
+        mColumns = columns;
+        mSelection = TextUtils.isEmpty(selection) ? null : selection;
+        mSelectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+
+        // the key columns go after the requested ones, so the indexes of the requested
+        // columns stay the same in the page cursors.
+        mQueryColumns = new String[columns.length + sKeyColumns.length];
+        System.arraycopy(columns, 0, mQueryColumns, 0, columns.length);
+        System.arraycopy(sKeyColumns, 0, mQueryColumns, columns.length, sKeyColumns.length);
+
+        // counting visits every matching row anyway, no plan to check here.
+        Cursor cursor = mDatabase.query(Post.MEMORY_TABLE_NAME, sCountColumns, mSelection, mSelectionArgs, null, null, null);
+        try
+        {
+            cursor.moveToFirst();
+            mCount = cursor.getInt(0);
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        int pages = (mCount + PAGE_SIZE - 1) / PAGE_SIZE;
+        mFirstCreatedAt = new long[pages];
+        mFirstId = new int[pages];
+        mLastCreatedAt = new long[pages];
+        mLastId = new int[pages];
+    }
+
+    /**
+     * find the position of a post in this cursor without walking through it.
+     *
+     * @param created_at    the created_at of the post
+     * @param post_db_id    the database _id of the post
+     * @return the position, or -1 if the post is not in this cursor
+     */
+    public int getPositionOf(long created_at, int post_db_id)
+    {
+        String[] keyArgs = keyArgs(created_at, post_db_id);
+        Cursor cursor = query(
+            sCountColumns,
+            where(Post.KEY_POST_DATABASE_ID + " == ?"), args(new String[] { Integer.toString(post_db_id) }),
+            null, null
+        );
+        try
+        {
+            cursor.moveToFirst();
+            if (cursor.getInt(0) == 0)
+                return -1;
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        cursor = query(
+            sCountColumns,
+            where(SELECTION_BEFORE), args(keyArgs),
+            null, null
+        );
+        try
+        {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    private String where(String keySelection)
+    {
+        if (mSelection == null)
+            return keySelection;
+        return "(" + mSelection + ") AND " + keySelection;
+    }
+
+    private String[] args(String[] keyArgs)
+    {
+        String[] args = new String[mSelectionArgs.length + keyArgs.length];
+        System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgs.length);
+        System.arraycopy(keyArgs, 0, args, mSelectionArgs.length, keyArgs.length);
+        return args;
+    }
+
+    private Cursor query(String[] columns, String selection, String[] selectionArgs, String orderBy, String limit)
+    {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+            false, Post.MEMORY_TABLE_NAME, columns, selection, null, null, orderBy, limit
+        );
+        if (DEBUG)
+            DanbooruGalleryDatabase.checkQueryPlan(mDatabase, sql, selectionArgs);
+        return mDatabase.rawQuery(sql, selectionArgs);
+    }
+
+    private static String[] keyArgs(long created_at, int post_db_id)
+    {
+        String c = Long.toString(created_at);
+        return new String[] { c, c, Integer.toString(post_db_id) };
+    }
+
+    private Cursor loadPage(int page)
+    {
+        String limit = Integer.toString(PAGE_SIZE);
+        Cursor cursor;
+        if (page == 0)
+            cursor = query(mQueryColumns, mSelection, mSelectionArgs, ORDER_DESC, limit);
+        else if (mLastId[page - 1] != 0)
+            cursor = query(
+                mQueryColumns,
+                where(SELECTION_AFTER), args(keyArgs(mLastCreatedAt[page - 1], mLastId[page - 1])),
+                ORDER_DESC, limit
+            );
+        else
+        {
+            if (mFirstId[page] == 0 && !seekFirstKey(page))
+                return null;
+            cursor = query(
+                mQueryColumns,
+                where(SELECTION_FROM_INCLUSIVE), args(keyArgs(mFirstCreatedAt[page], mFirstId[page])),
+                ORDER_DESC, limit
+            );
+        }
+
+        int createdAtIndex = mColumns.length;
+        int idIndex = mColumns.length + 1;
+        if (cursor.moveToFirst())
+        {
+            mFirstCreatedAt[page] = cursor.getLong(createdAtIndex);
+            mFirstId[page] = cursor.getInt(idIndex);
+            cursor.moveToLast();
+            mLastCreatedAt[page] = cursor.getLong(createdAtIndex);
+            mLastId[page] = cursor.getInt(idIndex);
+        }
+        return cursor;
+    }
+
+    /**
+     * find the key of the first row of the page, walk backward from the next page if we know
+     * where it starts, otherwise fall back to OFFSET.
+     */
+    private boolean seekFirstKey(int page)
+    {
+        Cursor cursor;
+        if (page + 1 < mFirstId.length && mFirstId[page + 1] != 0)
+            cursor = query(
+                sKeyColumns,
+                where(SELECTION_BEFORE), args(keyArgs(mFirstCreatedAt[page + 1], mFirstId[page + 1])),
+                ORDER_ASC, (PAGE_SIZE - 1) + ",1"
+            );
+        else
+            cursor = query(
+                sKeyColumns,
+                mSelection, mSelectionArgs,
+                ORDER_DESC, (page * PAGE_SIZE) + ",1"
+            );
+
+        try
+        {
+            if (!cursor.moveToFirst())
+                return false;
+            mFirstCreatedAt[page] = cursor.getLong(0);
+            mFirstId[page] = cursor.getInt(1);
+            return true;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    private Cursor getPage(int page)
+    {
+        Cursor cursor = mPages.get(page);
+        if (cursor != null)
+            return cursor;
+
+        cursor = loadPage(page);
+        if (cursor == null)
+            return null;
+
+        mPages.put(page, cursor);
+        if (mPages.size() > MAX_PAGES)
+        {
+            Iterator<Map.Entry<Integer, Cursor>> it = mPages.entrySet().iterator();
+            it.next().getValue().close();
+            it.remove();
+        }
+        return cursor;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition)
+    {
+        mPage = getPage(newPosition / PAGE_SIZE);
+        if (mPage == null || !mPage.moveToPosition(newPosition % PAGE_SIZE))
+        {
+            // the table has been shrunk under us, the loader will bring a new cursor soon.
+            // until then the row reads as all nulls, CursorAdapter gives up on a failed move.
+            Log.v(TAG, "position " + newPosition + " is gone.");
+            mPage = null;
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames()
+    {
+        return mColumns;
+    }
+
+    @Override
+    public String getString(int column)
+    {
+        return mPage != null ? mPage.getString(column) : null;
+    }
+
+    @Override
+    public short getShort(int column)
+    {
+        return mPage != null ? mPage.getShort(column) : 0;
+    }
+
+    @Override
+    public int getInt(int column)
+    {
+        return mPage != null ? mPage.getInt(column) : 0;
+    }
+
+    @Override
+    public long getLong(int column)
+    {
+        return mPage != null ? mPage.getLong(column) : 0;
+    }
+
+    @Override
+    public float getFloat(int column)
+    {
+        return mPage != null ? mPage.getFloat(column) : 0;
+    }
+
+    @Override
+    public double getDouble(int column)
+    {
+        return mPage != null ? mPage.getDouble(column) : 0;
+    }
+
+    @Override
+    public byte[] getBlob(int column)
+    {
+        return mPage != null ? mPage.getBlob(column) : null;
+    }
+
+    @Override
+    public int getType(int column)
+    {
+        return mPage != null ? mPage.getType(column) : FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public boolean isNull(int column)
+    {
+        return mPage != null ? mPage.isNull(column) : true;
+    }
+
+    @Override
+    public void close()
+    {
+        super.close();
+        for (Cursor cursor : mPages.values())
+            cursor.close();
+        mPages.clear();
+        mPage = null;
+    }
+}
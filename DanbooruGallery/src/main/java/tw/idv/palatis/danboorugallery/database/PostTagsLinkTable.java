@@ -27,7 +27,7 @@ public class PostTagsLinkTable
     public static final String MEMORY_TABLE_NAME = DanbooruGalleryDatabase.MEMORY_DATABASE_NAME + ".post_tags_link";
     public static final String KEY_LINK_DATABASE_ID = "_id";
     public static final String KEY_POST_DATABASE_ID = "post_id";
-    public static final String KEY_TAG_HASHCODE = "tag_hashcode";
+    public static final String KEY_TAG_DATABASE_ID = "tag_id";
 
     private static SQLiteDatabase sDatabase;
 
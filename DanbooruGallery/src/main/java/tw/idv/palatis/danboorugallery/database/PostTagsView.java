@@ -20,6 +20,9 @@ package tw.idv.palatis.danboorugallery.database;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import static tw.idv.palatis.danboorugallery.BuildConfig.DEBUG;
 
 /**
  * Created by 其威 on 2014/1/23.
@@ -45,14 +48,15 @@ public class PostTagsView
         KEY_TAG_NAME,
     };
 
+    private static final String SQL_GET_TAG_NAMES = SQLiteQueryBuilder.buildQueryString(
+        false, VIEW_NAME, sPostTagsColumnNames, KEY_POST_DATABASE_ID + " == ?", null, null, null, null
+    );
+
     public static Cursor getTagNamesCursorForPostDatabaseId(int post_db_id)
     {
-        return sDatabase.query(
-            VIEW_NAME,
-            sPostTagsColumnNames,
-            KEY_POST_DATABASE_ID + " == ?",
-            new String[] { Integer.toString(post_db_id) },
-            null, null, null, null
-        );
+        String[] args = new String[] { Integer.toString(post_db_id) };
+        if (DEBUG)
+            DanbooruGalleryDatabase.checkQueryPlan(sDatabase, SQL_GET_TAG_NAMES, args);
+        return sDatabase.rawQuery(SQL_GET_TAG_NAMES, args);
     }
 }
@@ -18,18 +18,23 @@
 
 package tw.idv.palatis.danboorugallery.database;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.DataSetObserver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import tw.idv.palatis.danboorugallery.android.database.PriorityDataSetObservable;
@@ -37,11 +42,15 @@ import tw.idv.palatis.danboorugallery.model.Host;
 import tw.idv.palatis.danboorugallery.model.Post;
 import tw.idv.palatis.danboorugallery.model.Tag;
 
+import static tw.idv.palatis.danboorugallery.BuildConfig.DEBUG;
+
 public class PostsTable
 {
     private static final String TAG = "PostsTable";
 
     private static SQLiteStatement sGetMainPostsCountStatement;
+    private static SQLiteStatement sInsertPostStatement;
+    private static SQLiteStatement sInsertPostTagLinkStatement;
     private static SQLiteDatabase sDatabase;
     private static PriorityDataSetObservable sDataSetObservable = new PriorityDataSetObservable();
 
@@ -51,6 +60,16 @@ public class PostsTable
         sGetMainPostsCountStatement = sDatabase.compileStatement(
             "SELECT COUNT() FROM " + Post.MAIN_TABLE_NAME + ";"
         );
+        sInsertPostStatement = sDatabase.compileStatement(
+            "INSERT OR REPLACE INTO " + Post.MAIN_TABLE_NAME + " (" +
+                TextUtils.join(",", POST_INSERT_COLUMNS) +
+            ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?);"
+        );
+        sInsertPostTagLinkStatement = sDatabase.compileStatement(
+            "INSERT INTO " + PostTagsLinkTable.MAIN_TABLE_NAME + " (" +
+                PostTagsLinkTable.KEY_POST_DATABASE_ID + "," + PostTagsLinkTable.KEY_TAG_DATABASE_ID +
+            ") VALUES (?,?);"
+        );
     }
 
     public static void registerDataSetObserver(DataSetObserver observer)
@@ -122,31 +141,60 @@ public class PostsTable
         );
     }
 
+    // the column order of sInsertPostStatement, _id is bound to null for new posts.
+    private static final String[] POST_INSERT_COLUMNS = new String[] {
+        Post.KEY_POST_DATABASE_ID, Post.KEY_POST_HOST_ID, Post.KEY_POST_ID,
+        Post.KEY_POST_CREATED_AT, Post.KEY_POST_UPDATED_AT,
+        Post.KEY_POST_FILE_SIZE,
+        Post.KEY_POST_IMAGE_WIDTH, Post.KEY_POST_IMAGE_HEIGHT,
+        Post.KEY_POST_FILE_URL, Post.KEY_POST_LARGE_FILE_URL, Post.KEY_POST_PREVIEW_FILE_URL,
+        Post.KEY_POST_RATING, Post.KEY_POST_EXTRA_INFO,
+    };
+
+    private static void bindPost(SQLiteStatement statement, int post_db_id, Post post)
+    {
+        statement.clearBindings();
+        if (post_db_id != -1)
+            statement.bindLong(1, post_db_id);
+        statement.bindLong(2, post.host.id);
+        statement.bindLong(3, post.post_id);
+        statement.bindLong(4, post.created_at.getTime());
+        statement.bindLong(5, post.updated_at.getTime());
+        statement.bindLong(6, post.file_size);
+        statement.bindLong(7, post.image_width);
+        statement.bindLong(8, post.image_height);
+        statement.bindString(9, post.file_url);
+        statement.bindString(10, post.file_url_large);
+        statement.bindString(11, post.file_url_preview);
+        statement.bindString(12, post.rating);
+        statement.bindString(13, post.getExtras());
+    }
+
+    /**
+     * get a paged cursor over temp.posts ordered by created_at descending.
+     * @see PagedPostsCursor
+     */
+    public static PagedPostsCursor getTempPostsPagedCursor(String[] columns, String selection, String[] selectionArgs)
+    {
+        return new PagedPostsCursor(sDatabase, columns, selection, selectionArgs);
+    }
+
     /**
      * add or update poses
      * @param host
      *      the host of the posts
      * @param posts
      *      the posts
+     * @param signal
+     *      the cancellation signal, the whole transaction is rolled back when canceled.
      * @return
      *      number of updated posts. (updated + new = posts.size())
      */
-    public static int addOrUpdatePosts(Host host, List<Post> posts)
+    synchronized public static int addOrUpdatePosts(Host host, List<Post> posts, CancellationSignal signal)
     {
         if (posts.size() == 0)
             return 0;
 
-        // sort the posts by id ascending, we rely on this order to associate
-        // tags with the post correctly.
-        Collections.sort(posts, new Comparator<Post>()
-        {
-            @Override
-            public int compare(Post lhs, Post rhs)
-            {
-                return lhs.post_id - rhs.post_id;
-            }
-        });
-
         // collect post id and tags
         StringBuilder sb = new StringBuilder();
         Set<String> tags = new HashSet<>();
@@ -157,82 +205,87 @@ public class PostsTable
         }
         sb.deleteCharAt(sb.length() - 1);
 
-        String sql;
-
-        int deleted = -1;
+        int deleted;
+        SortedLongArray tempCreatedAt;
+        Map<String, Integer> tagIds;
+        int tagIdsGeneration;
+        // tag name -> number of new posts with it, for the suggestions.
+        Map<String, Integer> tagPostCounts = new HashMap<>();
         sDatabase.beginTransactionNonExclusive();
         try
         {
-            // delete existing post_tags_link
-            sql =   PostTagsLinkTable.KEY_POST_DATABASE_ID + " IN (" +
-                "SELECT " + Post.KEY_POST_DATABASE_ID + " FROM " + Post.MAIN_TABLE_NAME + " " +
-                "WHERE " +
-                    Post.KEY_POST_HOST_ID + " == " + host.id + " AND " +
-                    Post.KEY_POST_ID + " IN (" + sb.toString() + ")" +
-                ");";
-            deleted = sDatabase.delete(PostTagsLinkTable.MAIN_TABLE_NAME, sql, null);
-
-            // insert tags into the database
-            ContentValues values = new ContentValues();
-            for (String tag : tags)
-            {
-                values.clear();
-                values.put(Tag.KEY_TAG_HASHCODE, tag.hashCode());
-                values.put(Tag.KEY_TAG_NAME, tag);
-                values.put(Tag.KEY_TAG_SEARCH_COUNT, 0);
-                sDatabase.insertWithOnConflict(Tag.MAIN_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-            }
-
-            // collect existing posts
-            sql =   Post.KEY_POST_HOST_ID + " == " + host.id + " AND " +
-                Post.KEY_POST_ID + " IN (" + sb.toString() + ")";
-            Cursor existing = sDatabase.query(
-                Post.MAIN_TABLE_NAME,
+            // map existing post to database id
+            String existingSql = SQLiteQueryBuilder.buildQueryString(
+                false, Post.MAIN_TABLE_NAME,
                 new String[] { Post.KEY_POST_DATABASE_ID, Post.KEY_POST_ID },
-                sql, null,
+                Post.KEY_POST_HOST_ID + " == " + host.id + " AND " +
+                    Post.KEY_POST_ID + " IN (" + sb.toString() + ")",
                 null, null, null, null
             );
-
-            // map existing post to database id
+            if (DEBUG)
+                DanbooruGalleryDatabase.checkQueryPlan(sDatabase, existingSql, null);
+            Cursor existing = sDatabase.rawQuery(existingSql, null);
             deleted = existing.getCount();
-            SparseIntArray post_map = new SparseIntArray(existing.getCount());
-            while (existing.moveToNext())
-                post_map.put(existing.getInt(1), existing.getInt(0));
+            SparseIntArray post_map = new SparseIntArray(deleted);
+            StringBuilder existing_ids = new StringBuilder();
+            try
+            {
+                while (existing.moveToNext())
+                {
+                    post_map.put(existing.getInt(1), existing.getInt(0));
+                    existing_ids.append(existing.getInt(0)).append(',');
+                }
+            }
+            finally
+            {
+                existing.close();
+            }
 
-            // insert posts into the database
-            for (Post post : posts)
+            // delete existing post_tags_link
+            if (existing_ids.length() != 0)
             {
-                values.clear();
-                int post_db_id = post_map.get(post.post_id, -1);
-                if (post_db_id != -1)
-                    values.put(Post.KEY_POST_DATABASE_ID, post_db_id);
-                post.putToContentValues(values);
-                sDatabase.insertWithOnConflict(Post.MAIN_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                existing_ids.setLength(existing_ids.length() - 1);
+                sDatabase.delete(
+                    PostTagsLinkTable.MAIN_TABLE_NAME,
+                    PostTagsLinkTable.KEY_POST_DATABASE_ID + " IN (" + existing_ids + ")", null
+                );
             }
 
-            // connect tags with posts
-            // reuse this sql from previous DELETE query
-            // sql =   Post.KEY_POST_HOST_ID + " == " + sHost.id + " AND " +
-            //         Post.KEY_POST_ID + " IN (" + sb.toString() + ")";
-            Cursor cursor = sDatabase.query(
-                Post.MAIN_TABLE_NAME,
-                new String[] { Post.KEY_POST_DATABASE_ID },
-                sql, null,
-                null, null, Post.KEY_POST_ID, Integer.toString(posts.size()));
+            // insert tags into the database
+            signal.throwIfCanceled();
+            tagIdsGeneration = TagsTable.getTagIdsGeneration();
+            tagIds = TagsTable.getOrInsertTagIds(tags);
+
+            // insert posts into the database, and connect tags with them.
+            // the row id from the insert is the post database id, no need to read them back.
             int n = posts.size();
+            int[] post_db_ids = new int[n];
             for (int i = 0;i < n;++i)
             {
+                signal.throwIfCanceled();
                 Post post = posts.get(i);
-                cursor.moveToPosition(i);
-                int post_id = cursor.getInt(0);
+                int old_post_db_id = post_map.get(post.post_id, -1);
+                if (old_post_db_id == -1)
+                {
+                    for (String tag : post.tags)
+                    {
+                        Integer count = tagPostCounts.get(tag);
+                        tagPostCounts.put(tag, count == null ? 1 : count + 1);
+                    }
+                }
+                bindPost(sInsertPostStatement, old_post_db_id, post);
+                int post_db_id = (int) sInsertPostStatement.executeInsert();
+                post_db_ids[i] = post_db_id;
+
+                sInsertPostTagLinkStatement.bindLong(1, post_db_id);
                 for (int j = post.tags.length - 1;j >= 0;--j)
                 {
-                    values.clear();
-                    values.put(PostTagsLinkTable.KEY_POST_DATABASE_ID, post_id);
-                    values.put(PostTagsLinkTable.KEY_TAG_HASHCODE, post.tags[j].hashCode());
-                    sDatabase.insert(PostTagsLinkTable.TABLE_NAME, null, values);
+                    sInsertPostTagLinkStatement.bindLong(2, tagIds.get(post.tags[j]));
+                    sInsertPostTagLinkStatement.executeInsert();
                 }
             }
+
+            tempCreatedAt = updateTempTable(host, posts, post_db_ids);
             sDatabase.setTransactionSuccessful();
         }
         finally
@@ -240,11 +293,96 @@ public class PostsTable
             sDatabase.endTransaction();
         }
 
+        if (tempCreatedAt != null)
+            synchronized (sTempPostsCreatedAt)
+            {
+                sTempPostsCreatedAt.put(host.id, tempCreatedAt);
+            }
+
+        // the transaction is committed, the new tag ids are valid now.
+        TagsTable.cacheTagIds(tagIds, tagIdsGeneration);
+        TagsTable.indexTags(tagIds.keySet(), tagPostCounts, tagIdsGeneration);
+
+        if (tempCreatedAt != null)
+            sDataSetObservable.notifyChanged();
+
         return deleted;
     }
 
+    /**
+     * Apply the newly added or updated posts to temp.posts, must be called within the transaction.
+     * @return the new created_at of the host in temp.posts, to be put into sTempPostsCreatedAt
+     *         once the transaction is committed, or null if the host is not shown.
+     */
+    private static SortedLongArray updateTempTable(Host host, List<Post> posts, int[] post_db_ids)
+    {
+        if (sTempTableHostIds == null || !sTempTableHostIds.contains(host.id))
+            return null;
+
+        StringBuilder all = new StringBuilder();
+        StringBuilder matched = new StringBuilder();
+        for (int i = posts.size() - 1;i >= 0;--i)
+        {
+            all.append(post_db_ids[i]).append(',');
+            if (hasAllTags(posts.get(i), sTempTableTags))
+                matched.append(post_db_ids[i]).append(',');
+        }
+        all.setLength(all.length() - 1);
+
+        // the updated posts might not match the filter tags any more, remove them first.
+        String selection = Post.KEY_POST_DATABASE_ID + " IN (" + all + ")";
+        Cursor cursor = sDatabase.query(
+            Post.MEMORY_TABLE_NAME, sCreatedAtColumnNames,
+            selection, null,
+            null, null, null, null
+        );
+        long[] removed = new long[cursor.getCount()];
+        try
+        {
+            while (cursor.moveToNext())
+                removed[cursor.getPosition()] = cursor.getLong(0);
+        }
+        finally
+        {
+            cursor.close();
+        }
+        sDatabase.delete(Post.MEMORY_TABLE_NAME, selection, null);
+        if (matched.length() != 0)
+        {
+            matched.setLength(matched.length() - 1);
+            sDatabase.execSQL(
+                "INSERT INTO " + Post.MEMORY_TABLE_NAME + " " +
+                "SELECT * FROM " + Post.MAIN_TABLE_NAME + " " +
+                "WHERE " + Post.KEY_POST_DATABASE_ID + " IN (" + matched + ");"
+            );
+        }
+
+        // work on a copy, the published one stays as is if the transaction is rolled back.
+        SortedLongArray createdAt;
+        synchronized (sTempPostsCreatedAt)
+        {
+            createdAt = sTempPostsCreatedAt.get(host.id);
+        }
+        createdAt = createdAt == null ? new SortedLongArray(posts.size()) : new SortedLongArray(createdAt);
+        for (long created_at : removed)
+            createdAt.remove(created_at);
+        for (Post post : posts)
+            if (hasAllTags(post, sTempTableTags))
+                createdAt.add(post.created_at.getTime());
+        return createdAt;
+    }
+
+    private static boolean hasAllTags(Post post, String[] tags)
+    {
+        // post.tags is sorted by the constructor
+        for (String tag : tags)
+            if (Arrays.binarySearch(post.tags, tag) < 0)
+                return false;
+        return true;
+    }
+
     // delete
-    public static void deleteAllPosts()
+    synchronized public static void deleteAllPosts()
     {
         sDatabase.beginTransactionNonExclusive();
         try
@@ -252,40 +390,173 @@ public class PostsTable
             sDatabase.delete(Post.MAIN_TABLE_NAME, null, null);
             sDatabase.delete(Post.MEMORY_TABLE_NAME, null, null);
             sDatabase.delete(PostTagsLinkTable.MAIN_TABLE_NAME, null, null);
-            sDatabase.delete(Tag.MAIN_TABLE_NAME, null, null);
+            TagsTable.deleteAllTags();
             sDatabase.setTransactionSuccessful();
         }
         finally
         {
             sDatabase.endTransaction();
         }
+        synchronized (sTempPostsCreatedAt)
+        {
+            sTempPostsCreatedAt.clear();
+        }
         sDatabase.execSQL("VACUUM;");
         sDataSetObservable.notifyInvalidated();
     }
 
-    public static void clearTempPostTable()
+    synchronized public static void clearTempPostTable()
     {
         sDatabase.beginTransactionNonExclusive();
         try
         {
             sDatabase.delete(Post.MEMORY_TABLE_NAME, null, null);
+            // temp.posts no longer reflects any query, the next rebuild must be a full one.
+            sTempTableHostIds = null;
+            sTempTableTags = null;
             sDatabase.setTransactionSuccessful();
         }
         finally
         {
             sDatabase.endTransaction();
         }
+        synchronized (sTempPostsCreatedAt)
+        {
+            sTempPostsCreatedAt.clear();
+        }
         sDataSetObservable.notifyInvalidated();
     }
 
-    public static void rebuildTempTable(List<Host> hosts, /* String selection, String[] selectionArgs, */ String[] tags)
+    // the hosts and tags temp.posts currently holds. only read or written within a transaction,
+    // which also serializes them with the upserts from the fetching threads.
+    private static Set<Integer> sTempTableHostIds = null;
+    private static String[] sTempTableTags = null;
+    // host id -> created_at of its posts in temp.posts, for getPostPosition(). only modified
+    // after the transaction changing temp.posts is committed, by the synchronized writers so a
+    // late update can't overwrite a newer one. read without a transaction, so it's also guarded
+    // by itself.
+    private static final SparseArray<SortedLongArray> sTempPostsCreatedAt = new SparseArray<>();
+    private static final String[] sCreatedAtColumnNames = new String[] { Post.KEY_POST_CREATED_AT };
+    private static final String SQL_LOAD_TEMP_POSTS_CREATED_AT = SQLiteQueryBuilder.buildQueryString(
+        false, Post.MEMORY_TABLE_NAME, sCreatedAtColumnNames,
+        Post.KEY_POST_HOST_ID + " == ?", null, null, Post.KEY_POST_CREATED_AT, null
+    );
+
+    /**
+     * Make temp.posts hold the posts from {@code hosts} having all the {@code tags}.
+     * Only changed hosts are inserted or deleted when the tags are the same, the table is
+     * rebuilt from scratch only when the tags have changed.
+     *
+     * @param hosts    the hosts, disabled hosts are ignored
+     * @param tags     the filter tags
+     */
+    synchronized public static void rebuildTempTable(List<Host> hosts, /* String selection, String[] selectionArgs, */ String[] tags)
+    {
+        Set<Integer> hostIds = new HashSet<>();
+        for (Host host : hosts)
+            if (host.enabled)
+                hostIds.add(host.id);
+
+        if (tags == null)
+            tags = new String[0];
+        tags = tags.clone();
+        Arrays.sort(tags);
+
+        // applied to sTempPostsCreatedAt only after the transaction is committed.
+        boolean rebuilt = false;
+        Set<Integer> removed = Collections.emptySet();
+        SparseArray<SortedLongArray> loaded = new SparseArray<>();
+        sDatabase.beginTransactionNonExclusive();
+        try
+        {
+            if (sTempTableHostIds == null || !Arrays.equals(sTempTableTags, tags))
+            {
+                sDatabase.delete(Post.MEMORY_TABLE_NAME, null, null);
+                insertIntoTempTable(hostIds, tags);
+                loadTempPostsCreatedAt(hostIds, loaded);
+                rebuilt = true;
+            }
+            else
+            {
+                removed = new HashSet<>(sTempTableHostIds);
+                removed.removeAll(hostIds);
+                Set<Integer> added = new HashSet<>(hostIds);
+                added.removeAll(sTempTableHostIds);
+
+                if (!removed.isEmpty())
+                {
+                    sDatabase.delete(
+                        Post.MEMORY_TABLE_NAME,
+                        Post.KEY_POST_HOST_ID + " IN (" + TextUtils.join(",", removed) + ")",
+                        null
+                    );
+                }
+                if (!added.isEmpty())
+                {
+                    insertIntoTempTable(added, tags);
+                    loadTempPostsCreatedAt(added, loaded);
+                }
+            }
+            sTempTableHostIds = hostIds;
+            sTempTableTags = tags;
+            sDatabase.setTransactionSuccessful();
+        }
+        finally
+        {
+            sDatabase.endTransaction();
+        }
+
+        synchronized (sTempPostsCreatedAt)
+        {
+            if (rebuilt)
+                sTempPostsCreatedAt.clear();
+            for (int hostId : removed)
+                sTempPostsCreatedAt.remove(hostId);
+            for (int i = loaded.size() - 1;i >= 0;--i)
+                sTempPostsCreatedAt.put(loaded.keyAt(i), loaded.valueAt(i));
+        }
+
+        sDataSetObservable.notifyChanged();
+    }
+
+    /**
+     * (re-)load created_at of the hosts in temp.posts into {@code loaded}, must be called within
+     * the transaction.
+     */
+    private static void loadTempPostsCreatedAt(Set<Integer> hostIds, SparseArray<SortedLongArray> loaded)
     {
+        for (int hostId : hostIds)
+        {
+            String[] args = new String[] { Integer.toString(hostId) };
+            if (DEBUG)
+                DanbooruGalleryDatabase.checkQueryPlan(sDatabase, SQL_LOAD_TEMP_POSTS_CREATED_AT, args);
+            Cursor cursor = sDatabase.rawQuery(SQL_LOAD_TEMP_POSTS_CREATED_AT, args);
+            SortedLongArray createdAt = new SortedLongArray(cursor.getCount());
+            try
+            {
+                while (cursor.moveToNext())
+                    createdAt.append(cursor.getLong(0));
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            loaded.put(hostId, createdAt);
+        }
+    }
+
+    private static void insertIntoTempTable(Set<Integer> hostIds, String[] tags)
+    {
+        if (hostIds.isEmpty())
+            return;
+
         List<String> args = new ArrayList<>();
         StringBuilder builder = new StringBuilder();
 
         builder.append("INSERT OR IGNORE INTO ").append(Post.MEMORY_TABLE_NAME);
 
-        if (tags != null && tags.length != 0)
+        if (tags.length != 0)
         {
             builder.append(" SELECT * FROM (");
             for (int i = tags.length - 1;i >= 0;--i)
@@ -295,8 +566,11 @@ public class PostsTable
                     .append(" WHERE ").append(Post.KEY_POST_DATABASE_ID)
                     .append(" IN (SELECT ").append(PostTagsLinkTable.KEY_POST_DATABASE_ID)
                     .append(" FROM ").append(PostTagsLinkTable.TABLE_NAME)
-                    .append(" WHERE ").append(PostTagsLinkTable.KEY_TAG_HASHCODE).append(" == ?) INTERSECT ");
-                args.add(Integer.toString(tags[i].hashCode()));
+                    .append(" WHERE ").append(PostTagsLinkTable.KEY_TAG_DATABASE_ID)
+                    .append(" == (SELECT ").append(Tag.KEY_TAG_DATABASE_ID)
+                    .append(" FROM ").append(Tag.MAIN_TABLE_NAME)
+                    .append(" WHERE ").append(Tag.KEY_TAG_NAME).append(" == ?)) INTERSECT ");
+                args.add(tags[i]);
             }
             builder.setLength(builder.length() - 11 /* " INTERSECT ".length() */);
             builder.append(")");
@@ -304,45 +578,31 @@ public class PostsTable
         else
             builder.append(" SELECT * FROM ").append(Post.MAIN_TABLE_NAME);
         builder.append(" WHERE ").append(Post.KEY_POST_HOST_ID).append(" IN ( ");
-        for (Host host : hosts)
+        for (int hostId : hostIds)
         {
-            if (host.enabled)
-            {
-                builder.append("?,");
-                args.add(Integer.toString(host.id));
-            }
+            builder.append("?,");
+            args.add(Integer.toString(hostId));
         }
         builder.setLength(builder.length() - 1);
         builder.append(");");
 
-        sDatabase.beginTransactionNonExclusive();
-        try
-        {
-            sDatabase.delete(Post.MEMORY_TABLE_NAME, null, null);
-            sDatabase.execSQL(builder.toString(), args.toArray());
-            sDatabase.setTransactionSuccessful();
-        }
-        finally
-        {
-            sDatabase.endTransaction();
-        }
-
-        sDataSetObservable.notifyChanged();
+        String sql = builder.toString();
+        if (DEBUG)
+            DanbooruGalleryDatabase.checkQueryPlan(sDatabase, sql, args.toArray(new String[args.size()]));
+        sDatabase.execSQL(sql, args.toArray());
     }
 
-    private static final String[] sCountColumnNames = new String[] { "COUNT()" };
+    /**
+     * @return number of posts of the host in temp.posts created at or after {@code post_created_at}
+     */
     public static int getPostPosition(Host host, long post_created_at)
     {
-        Cursor cursor = sDatabase.query(
-            Post.MEMORY_TABLE_NAME,
-            sCountColumnNames,
-            Post.KEY_POST_CREATED_AT + " >= ? AND " + Post.KEY_POST_HOST_ID + " == ?",
-            new String[] { Long.toString(post_created_at), Integer.toString(host.id) },
-            null, null, null, null
-        );
-        cursor.moveToFirst();
-        int pos = cursor.getInt(0);
-        cursor.close();
-        return pos;
+        synchronized (sTempPostsCreatedAt)
+        {
+            SortedLongArray createdAt = sTempPostsCreatedAt.get(host.id);
+            if (createdAt == null)
+                return 0;
+            return createdAt.countAtLeast(post_created_at);
+        }
     }
 }
@@ -0,0 +1,128 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.database;
+
+import java.util.Arrays;
+
+/**
+ * an ascending array of longs, duplicates allowed. not thread-safe.
+ */
+class SortedLongArray
+{
+    private long[] mValues;
+    private int mSize = 0;
+
+    public SortedLongArray()
+    {
+        this(16);
+    }
+
+    public SortedLongArray(int capacity)
+    {
+        mValues = new long[Math.max(capacity, 1)];
+    }
+
+    public SortedLongArray(SortedLongArray other)
+    {
+        mValues = Arrays.copyOf(other.mValues, other.mValues.length);
+        mSize = other.mSize;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * append a value, the values must be appended in ascending order.
+     */
+    public void append(long value)
+    {
+        if (mSize != 0 && value < mValues[mSize - 1])
+        {
+            add(value);
+            return;
+        }
+        ensureCapacity(mSize + 1);
+        mValues[mSize++] = value;
+    }
+
+    public void add(long value)
+    {
+        int index = upperBound(value);
+        ensureCapacity(mSize + 1);
+        System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+        mValues[index] = value;
+        ++mSize;
+    }
+
+    public boolean remove(long value)
+    {
+        int index = lowerBound(value);
+        if (index == mSize || mValues[index] != value)
+            return false;
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        --mSize;
+        return true;
+    }
+
+    /**
+     * @return number of values greater than or equal to {@code value}
+     */
+    public int countAtLeast(long value)
+    {
+        return mSize - lowerBound(value);
+    }
+
+    // first index with mValues[index] >= value
+    private int lowerBound(long value)
+    {
+        int lo = 0, hi = mSize;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (mValues[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // first index with mValues[index] > value
+    private int upperBound(long value)
+    {
+        int lo = 0, hi = mSize;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (mValues[mid] <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > mValues.length)
+            mValues = Arrays.copyOf(mValues, Math.max(capacity, mValues.length * 2));
+    }
+}
@@ -0,0 +1,278 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tw.idv.palatis.danboorugallery.model.Tag;
+
+/**
+ * the names of all the tags we know of in sorted arrays, so the tags starting with what's being
+ * typed are found with a binary search instead of a trip to the database or the network.
+ * the arrays are replaced as a whole when tags are added, a search never waits for an update.
+ * the counts are updated in place, a search might see them a little late, they're only for
+ * ranking anyway. the best tags of the short prefixes match a good part of the index, they're
+ * remembered until the snapshot or the counts change.
+ */
+class TagIndex
+{
+    private static final int SHORT_PREFIX_LENGTH = 2;
+    private static final int SHORT_PREFIX_TOP_COUNT = 32;
+
+    private static final class Snapshot
+    {
+        final String[] names;
+        final int[] searchCounts;
+        final int[] postCounts;     // the posts we've downloaded with the tag
+        // short prefix -> the indexes of its best tags, the best first
+        final Map<String, int[]> top = new ConcurrentHashMap<>();
+
+        Snapshot(String[] names, int[] searchCounts, int[] postCounts)
+        {
+            this.names = names;
+            this.searchCounts = searchCounts;
+            this.postCounts = postCounts;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new String[0], new int[0], new int[0]);
+
+    private volatile Snapshot mSnapshot = EMPTY;
+
+    /**
+     * fill the index, e.g. with what's loaded from the database. the tags added while loading
+     * are kept. the arrays are taken over.
+     */
+    public synchronized void set(final String[] names, int[] searchCounts, int[] postCounts)
+    {
+        // sorted by String.compareTo(), the database might sort differently.
+        Integer[] order = new Integer[names.length];
+        for (int i = 0;i < order.length;++i)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer lhs, Integer rhs)
+            {
+                return names[lhs].compareTo(names[rhs]);
+            }
+        });
+
+        String[] sortedNames = new String[names.length];
+        int[] sortedSearchCounts = new int[names.length];
+        int[] sortedPostCounts = new int[names.length];
+        for (int i = 0;i < order.length;++i)
+        {
+            sortedNames[i] = names[order[i]];
+            sortedSearchCounts[i] = searchCounts[order[i]];
+            sortedPostCounts[i] = postCounts[order[i]];
+        }
+        mSnapshot = merge(new Snapshot(sortedNames, sortedSearchCounts, sortedPostCounts), mSnapshot);
+    }
+
+    public synchronized void clear()
+    {
+        mSnapshot = EMPTY;
+    }
+
+    /**
+     * add the tags not in the index yet, and count the posts for all of them.
+     *
+     * @param names         the tag names
+     * @param postCounts    the number of new posts with each tag, the tags not in here have none
+     */
+    public synchronized void add(Collection<String> names, Map<String, Integer> postCounts)
+    {
+        Snapshot snapshot = mSnapshot;
+        List<String> added = new ArrayList<>();
+        for (String name : names)
+        {
+            Integer count = postCounts.get(name);
+            int index = Arrays.binarySearch(snapshot.names, name);
+            if (index >= 0)
+            {
+                if (count != null)
+                    snapshot.postCounts[index] += count;
+            }
+            else
+                added.add(name);
+        }
+        if (added.isEmpty())
+        {
+            mSnapshot = recount(snapshot);
+            return;
+        }
+
+        String[] addedNames = added.toArray(new String[added.size()]);
+        Arrays.sort(addedNames);
+        int[] addedPostCounts = new int[addedNames.length];
+        for (int i = 0;i < addedNames.length;++i)
+        {
+            Integer count = postCounts.get(addedNames[i]);
+            addedPostCounts[i] = count != null ? count : 0;
+        }
+        mSnapshot = merge(snapshot, new Snapshot(addedNames, new int[addedNames.length], addedPostCounts));
+    }
+
+    /**
+     * merge two sorted snapshots in one pass, the counts from {@code lhs} win for the names in both.
+     */
+    private static Snapshot merge(Snapshot lhs, Snapshot rhs)
+    {
+        if (rhs.names.length == 0)
+            return lhs;
+        if (lhs.names.length == 0)
+            return rhs;
+
+        int size = lhs.names.length + rhs.names.length;
+        String[] names = new String[size];
+        int[] searchCounts = new int[size];
+        int[] postCounts = new int[size];
+        int i = 0, j = 0, k = 0;
+        while (i < lhs.names.length || j < rhs.names.length)
+        {
+            int compare = i == lhs.names.length ? 1 :
+                j == rhs.names.length ? -1 : lhs.names[i].compareTo(rhs.names[j]);
+            if (compare <= 0)
+            {
+                names[k] = lhs.names[i];
+                searchCounts[k] = lhs.searchCounts[i];
+                postCounts[k] = lhs.postCounts[i];
+                ++i;
+                if (compare == 0)
+                    ++j;
+            }
+            else
+            {
+                names[k] = rhs.names[j];
+                searchCounts[k] = rhs.searchCounts[j];
+                postCounts[k] = rhs.postCounts[j];
+                ++j;
+            }
+            ++k;
+        }
+        if (k != size)
+        {
+            names = Arrays.copyOf(names, k);
+            searchCounts = Arrays.copyOf(searchCounts, k);
+            postCounts = Arrays.copyOf(postCounts, k);
+        }
+        return new Snapshot(names, searchCounts, postCounts);
+    }
+
+    /**
+     * @return the same arrays without the best tags remembered, for when the counts are changed.
+     */
+    private static Snapshot recount(Snapshot snapshot)
+    {
+        return new Snapshot(snapshot.names, snapshot.searchCounts, snapshot.postCounts);
+    }
+
+    public synchronized void increaseSearchCount(String name)
+    {
+        Snapshot snapshot = mSnapshot;
+        int index = Arrays.binarySearch(snapshot.names, name);
+        if (index >= 0)
+        {
+            ++snapshot.searchCounts[index];
+            mSnapshot = recount(snapshot);
+        }
+        else // searched for a tag we've never seen
+            mSnapshot = merge(snapshot, new Snapshot(new String[] { name }, new int[] { 1 }, new int[] { 0 }));
+    }
+
+    /**
+     * @return at most {@code limit} tags starting with {@code prefix}, the most searched first,
+     *         then the ones with the most posts.
+     */
+    public List<Tag> search(String prefix, int limit)
+    {
+        Snapshot snapshot = mSnapshot;
+        if (prefix.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+
+        int[] best;
+        if (prefix.length() <= SHORT_PREFIX_LENGTH && limit <= SHORT_PREFIX_TOP_COUNT)
+        {
+            best = snapshot.top.get(prefix);
+            if (best == null)
+            {
+                best = findBest(snapshot, prefix, SHORT_PREFIX_TOP_COUNT);
+                snapshot.top.put(prefix, best);
+            }
+        }
+        else
+            best = findBest(snapshot, prefix, limit);
+
+        int count = Math.min(limit, best.length);
+        List<Tag> tags = new ArrayList<>(count);
+        for (int i = 0;i < count;++i)
+        {
+            Tag tag = new Tag(0, snapshot.names[best[i]], snapshot.postCounts[best[i]]);
+            tag.search_count = snapshot.searchCounts[best[i]];
+            tags.add(tag);
+        }
+        return tags;
+    }
+
+    /**
+     * @return the indexes of at most {@code limit} best tags starting with {@code prefix}, the
+     *         best first.
+     */
+    private static int[] findBest(Snapshot snapshot, String prefix, int limit)
+    {
+        // the first name not less than the prefix, the matches are all right after it.
+        int first = Arrays.binarySearch(snapshot.names, prefix);
+        if (first < 0)
+            first = -first - 1;
+
+        // keep the best ones in order, there's only a handful of them.
+        int[] best = new int[limit];
+        int count = 0;
+        for (int i = first;i < snapshot.names.length && snapshot.names[i].startsWith(prefix);++i)
+        {
+            if (count == limit && !isBetter(snapshot, i, best[count - 1]))
+                continue;
+            int j = count < limit ? count++ : count - 1;
+            while (j > 0 && isBetter(snapshot, i, best[j - 1]))
+            {
+                best[j] = best[j - 1];
+                --j;
+            }
+            best[j] = i;
+        }
+        return count == limit ? best : Arrays.copyOf(best, count);
+    }
+
+    private static boolean isBetter(Snapshot snapshot, int lhs, int rhs)
+    {
+        if (snapshot.searchCounts[lhs] != snapshot.searchCounts[rhs])
+            return snapshot.searchCounts[lhs] > snapshot.searchCounts[rhs];
+        if (snapshot.postCounts[lhs] != snapshot.postCounts[rhs])
+            return snapshot.postCounts[lhs] > snapshot.postCounts[rhs];
+        // the shorter, the closer to what's typed
+        return snapshot.names[lhs].length() < snapshot.names[rhs].length();
+    }
+}
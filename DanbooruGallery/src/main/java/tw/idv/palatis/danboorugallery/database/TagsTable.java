@@ -19,12 +19,20 @@
 package tw.idv.palatis.danboorugallery.database;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.DataSetObservable;
 import android.database.DataSetObserver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import tw.idv.palatis.danboorugallery.model.Tag;
 
@@ -33,11 +41,22 @@ import tw.idv.palatis.danboorugallery.model.Tag;
  */
 public class TagsTable
 {
+    private static final String TAG = "TagsTable";
+
     private static SQLiteDatabase sDatabase;
     private static DataSetObservable sDataSetObservable = new DataSetObservable();
 
     private static SQLiteStatement sIncreaseTagSearchCountStatement;
     private static SQLiteStatement sGetTagSearchCountStatement;
+    private static SQLiteStatement sGetTagIdStatement;
+    private static SQLiteStatement sInsertTagStatement;
+
+    // tag name -> tags._id, only holds ids that are committed to the database.
+    private static Map<String, Integer> sTagIds = new ConcurrentHashMap<>();
+    // bumped by deleteAllTags(), the ids looked up before that are gone. guarded by sTagIds.
+    private static int sTagIdsGeneration = 0;
+    // every tag name in the database, for the suggestions while typing.
+    private static final TagIndex sTagIndex = new TagIndex();
 
     public static void init(SQLiteDatabase database)
     {
@@ -45,14 +64,171 @@ public class TagsTable
         sIncreaseTagSearchCountStatement = sDatabase.compileStatement(
             "UPDATE OR IGNORE " + Tag.MAIN_TABLE_NAME + " " +
             "SET " + Tag.KEY_TAG_SEARCH_COUNT + " = " + Tag.KEY_TAG_SEARCH_COUNT + " + 1 " +
-            "WHERE " + Tag.KEY_TAG_HASHCODE + " == ?;"
+            "WHERE " + Tag.KEY_TAG_NAME + " == ?;"
         );
         sGetTagSearchCountStatement = sDatabase.compileStatement(
             "SELECT " + Tag.KEY_TAG_SEARCH_COUNT + " " +
             "FROM " + Tag.MAIN_TABLE_NAME + " " +
-            "WHERE " + Tag.KEY_TAG_HASHCODE + " == ? " +
+            "WHERE " + Tag.KEY_TAG_NAME + " == ? " +
             "LIMIT 1;"
         );
+        sGetTagIdStatement = sDatabase.compileStatement(
+            "SELECT " + Tag.KEY_TAG_DATABASE_ID + " " +
+            "FROM " + Tag.MAIN_TABLE_NAME + " " +
+            "WHERE " + Tag.KEY_TAG_NAME + " == ? " +
+            "LIMIT 1;"
+        );
+        sInsertTagStatement = sDatabase.compileStatement(
+            "INSERT INTO " + Tag.MAIN_TABLE_NAME + " (" +
+                Tag.KEY_TAG_NAME + "," + Tag.KEY_TAG_SEARCH_COUNT +
+            ") VALUES (?, 0);"
+        );
+
+        // there could be a lot of tags, don't hold up the startup.
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                loadTagIndex();
+            }
+        }.start();
+    }
+
+    private static void loadTagIndex()
+    {
+        long start = System.currentTimeMillis();
+        int generation = getTagIdsGeneration();
+        Cursor cursor = sDatabase.rawQuery(
+            "SELECT " +
+                "t." + Tag.KEY_TAG_NAME + "," +
+                "t." + Tag.KEY_TAG_SEARCH_COUNT + "," +
+                "COUNT(l." + PostTagsLinkTable.KEY_TAG_DATABASE_ID + ") " +
+            "FROM " + Tag.MAIN_TABLE_NAME + " AS t " +
+            "LEFT JOIN " + PostTagsLinkTable.MAIN_TABLE_NAME + " AS l " +
+                "ON l." + PostTagsLinkTable.KEY_TAG_DATABASE_ID + " == t." + Tag.KEY_TAG_DATABASE_ID + " " +
+            "GROUP BY t." + Tag.KEY_TAG_DATABASE_ID + ";",
+            null
+        );
+        try
+        {
+            int n = cursor.getCount();
+            String[] names = new String[n];
+            int[] searchCounts = new int[n];
+            int[] postCounts = new int[n];
+            for (int i = 0;cursor.moveToNext();++i)
+            {
+                names[i] = cursor.getString(0);
+                searchCounts[i] = cursor.getInt(1);
+                postCounts[i] = cursor.getInt(2);
+            }
+            synchronized (sTagIds)
+            {
+                // don't bring back the tags deleted while loading
+                if (generation == sTagIdsGeneration)
+                    sTagIndex.set(names, searchCounts, postCounts);
+            }
+            Log.d(TAG, "indexed " + n + " tags in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * the tags starting with {@code prefix} from the database, the most searched first, then the
+     * ones with the most downloaded posts. doesn't touch the database, fine to call while typing.
+     *
+     * @param prefix    what's typed so far
+     * @param limit     the max number of tags
+     * @return the tags, with {@link Tag#post_count} as the number of posts we have.
+     */
+    public static List<Tag> suggestTags(String prefix, int limit)
+    {
+        return sTagIndex.search(prefix, limit);
+    }
+
+    /**
+     * add the tags of the new posts to the suggestions, after the transaction inserting them is
+     * committed.
+     *
+     * @param names         the tag names
+     * @param postCounts    the number of new posts with each tag
+     * @param generation    {@link #getTagIdsGeneration()} from within the transaction
+     */
+    public static void indexTags(Collection<String> names, Map<String, Integer> postCounts, int generation)
+    {
+        synchronized (sTagIds)
+        {
+            // the tags have been deleted since
+            if (generation != sTagIdsGeneration)
+                return;
+            sTagIndex.add(names, postCounts);
+        }
+    }
+
+    /**
+     * @return the generation of the tag ids, read it within the transaction looking up the ids
+     *         and pass it to {@link #cacheTagIds(Map, int)}.
+     */
+    public static int getTagIdsGeneration()
+    {
+        synchronized (sTagIds)
+        {
+            return sTagIdsGeneration;
+        }
+    }
+
+    /**
+     * look up the ids of the tags, insert the ones that are not in the database yet.
+     * must be called within a transaction, and the result should be passed to
+     * {@link #cacheTagIds(Map, int)} after the transaction is committed.
+     *
+     * @param names     the tag names
+     * @return the tag name to tags._id map
+     */
+    public static Map<String, Integer> getOrInsertTagIds(Collection<String> names)
+    {
+        Map<String, Integer> ids = new HashMap<>(names.size());
+        for (String name : names)
+        {
+            Integer id = sTagIds.get(name);
+            if (id == null)
+            {
+                synchronized (sGetTagIdStatement)
+                {
+                    try
+                    {
+                        sGetTagIdStatement.bindString(1, name);
+                        id = (int) sGetTagIdStatement.simpleQueryForLong();
+                    }
+                    catch (SQLiteDoneException ex)
+                    {
+                        sInsertTagStatement.bindString(1, name);
+                        id = (int) sInsertTagStatement.executeInsert();
+                    }
+                }
+            }
+            ids.put(name, id);
+        }
+        return ids;
+    }
+
+    /**
+     * remember the tag ids from {@link #getOrInsertTagIds(Collection)}, the ids are only valid
+     * once the transaction inserting them is committed, and only until the tags are deleted.
+     *
+     * @param ids           the tag name to tags._id map
+     * @param generation    {@link #getTagIdsGeneration()} from within the transaction
+     */
+    public static void cacheTagIds(Map<String, Integer> ids, int generation)
+    {
+        synchronized (sTagIds)
+        {
+            if (generation == sTagIdsGeneration)
+                sTagIds.putAll(ids);
+        }
     }
 
     public static int increaseTagsSearchCount(String[] tags)
@@ -68,14 +244,17 @@ public class TagsTable
 
                 // try insert, ignore on fail (tag already exists)
                 ContentValues values = new ContentValues(2);
-                values.put(Tag.KEY_TAG_HASHCODE, tag.hashCode());
                 values.put(Tag.KEY_TAG_NAME, tag);
+                values.put(Tag.KEY_TAG_SEARCH_COUNT, 0);
                 sDatabase.insertWithOnConflict(Tag.MAIN_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
 
                 // increase the search_count by 1
-                sIncreaseTagSearchCountStatement.clearBindings();
-                sIncreaseTagSearchCountStatement.bindLong(1, tag.hashCode());
-                n += sIncreaseTagSearchCountStatement.executeUpdateDelete();
+                synchronized (sIncreaseTagSearchCountStatement)
+                {
+                    sIncreaseTagSearchCountStatement.clearBindings();
+                    sIncreaseTagSearchCountStatement.bindString(1, tag);
+                    n += sIncreaseTagSearchCountStatement.executeUpdateDelete();
+                }
             }
             sDatabase.setTransactionSuccessful();
         }
@@ -83,18 +262,26 @@ public class TagsTable
         {
             sDatabase.endTransaction();
         }
+
+        for (String tag : tags)
+            if (!TextUtils.isEmpty(tag))
+                sTagIndex.increaseSearchCount(tag);
         return n;
     }
 
+    // called from the tag searching threads, the statement can only be bound by one at a time.
     public static int getTagSearchCount(Tag tag)
     {
-        try
+        synchronized (sGetTagSearchCountStatement)
         {
-            sGetTagSearchCountStatement.clearBindings();
-            sGetTagSearchCountStatement.bindLong(1, tag.name.hashCode());
-            return (int) sGetTagSearchCountStatement.simpleQueryForLong();
+            try
+            {
+                sGetTagSearchCountStatement.clearBindings();
+                sGetTagSearchCountStatement.bindString(1, tag.name);
+                return (int) sGetTagSearchCountStatement.simpleQueryForLong();
+            }
+            catch (SQLiteDoneException ignored) { }
         }
-        catch (SQLiteDoneException ignored) { }
 
         return 0; // return 0 when tag doesn't exists in the database.
     }
@@ -111,6 +298,12 @@ public class TagsTable
 
     public static void deleteAllTags()
     {
+        synchronized (sTagIds)
+        {
+            ++sTagIdsGeneration;
+            sTagIds.clear();
+            sTagIndex.clear();
+        }
         sDatabase.delete(Tag.MAIN_TABLE_NAME, null, null);
     }
 }
@@ -21,9 +21,11 @@ package tw.idv.palatis.danboorugallery.model;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Locale;
 
 import tw.idv.palatis.danboorugallery.database.DanbooruGalleryDatabase;
 
@@ -65,6 +67,38 @@ public abstract class Post
     public String rating;                   // rating, can be "s" for Safe, "q" for Questionable, or "e" for Explicit.
 
     public abstract String getReferer();
+
+    /**
+     * @return the md5 of the original image, or null if the host doesn't tell.
+     */
+    public String getMd5()
+    {
+        return null;
+    }
+
+    /**
+     * the same image is usually served by more than one host or url, a content key identifies
+     * it no matter where it's downloaded from. the scaled down versions are different images,
+     * so they get different keys, and every host scales to its own sizes, so the host is part
+     * of their keys.
+     *
+     * @param url   one of {@link #file_url}, {@link #file_url_large} or {@link #file_url_preview}
+     * @return the content key of the image behind {@code url}, or null if it's not known
+     */
+    public String getContentKey(String url)
+    {
+        String md5 = getMd5();
+        if (TextUtils.isEmpty(md5) || url == null)
+            return null;
+        md5 = md5.toLowerCase(Locale.US);
+        if (url.equals(file_url))
+            return md5;
+        if (url.equals(file_url_large))
+            return md5 + "-large-" + host.id;
+        if (url.equals(file_url_preview))
+            return md5 + "-preview-" + host.id;
+        return null;
+    }
     public abstract String getDownloadFilename();
     public abstract String describeContent(Context context);
 
@@ -31,7 +31,6 @@ public class Tag
     public static final String MAIN_TABLE_NAME = DanbooruGalleryDatabase.MAIN_DATABASE_NAME + ".tags";
     public static final String MEMORY_TABLE_NAME = DanbooruGalleryDatabase.MEMORY_DATABASE_NAME + ".tags";
     public static final String KEY_TAG_DATABASE_ID = "_id";
-    public static final String KEY_TAG_HASHCODE = "hashcode";
 
     public static final String KEY_TAG_ID = "id";                   // "id":29,
     public static final String KEY_TAG_NAME = "name";               // "name":"touhou",
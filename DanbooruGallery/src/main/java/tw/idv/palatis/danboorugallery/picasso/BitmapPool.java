@@ -0,0 +1,158 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mutable ARGB_8888 bitmaps nobody uses anymore, waiting to be decoded into again through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * Before KitKat the bitmap has to be exactly the same size as the image, so the bitmaps are
+ * bucketed by their dimension. Since KitKat any bitmap large enough will do, so they're bucketed
+ * by their allocation size and the smallest one that fits is handed out. not thread-safe.
+ */
+class BitmapPool
+{
+    private static final boolean ANY_SIZE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    // don't waste more than this on a bitmap larger than needed
+    private static final int MAX_OVERSIZE_FACTOR = 2;
+
+    private final TreeMap<Long, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    // oldest first, for trimming
+    private final LinkedHashMap<Bitmap, Long> mBitmaps = new LinkedHashMap<>();
+    private long mSize = 0;
+
+    public long size()
+    {
+        return mSize;
+    }
+
+    /**
+     * @return a bitmap an image of {@code width} x {@code height} can be decoded into, or null
+     */
+    public Bitmap get(int width, int height)
+    {
+        Long key;
+        if (ANY_SIZE)
+        {
+            long needed = (long) width * height * 4;
+            key = mBuckets.ceilingKey(needed);
+            if (key != null && key > needed * MAX_OVERSIZE_FACTOR)
+                key = null;
+        }
+        else
+        {
+            key = dimensionKey(width, height);
+            if (!mBuckets.containsKey(key))
+                key = null;
+        }
+
+        if (key == null)
+            return null;
+
+        // the most recently added is the least likely to be swapped out.
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty())
+            mBuckets.remove(key);
+        mBitmaps.remove(bitmap);
+        mSize -= sizeOf(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @return true if {@code bitmap} is taken, false if it can't be decoded into.
+     */
+    public boolean put(Bitmap bitmap)
+    {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+            return false;
+        if (mBitmaps.containsKey(bitmap))
+            return true;
+
+        Long key = keyOf(bitmap);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mBitmaps.put(bitmap, key);
+        mSize += sizeOf(bitmap);
+        return true;
+    }
+
+    /**
+     * drop the oldest bitmaps until the pool is no larger than {@code size} bytes.
+     */
+    public void trimTo(long size)
+    {
+        Iterator<Map.Entry<Bitmap, Long>> it = mBitmaps.entrySet().iterator();
+        while (mSize > size && it.hasNext())
+        {
+            Map.Entry<Bitmap, Long> entry = it.next();
+            Bitmap bitmap = entry.getKey();
+            ArrayDeque<Bitmap> bucket = mBuckets.get(entry.getValue());
+            bucket.remove(bitmap);
+            if (bucket.isEmpty())
+                mBuckets.remove(entry.getValue());
+            it.remove();
+            mSize -= sizeOf(bitmap);
+        }
+    }
+
+    public void clear()
+    {
+        trimTo(0);
+    }
+
+    private static Long keyOf(Bitmap bitmap)
+    {
+        if (ANY_SIZE)
+            return allocationSizeOf(bitmap);
+        return dimensionKey(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    private static Long dimensionKey(int width, int height)
+    {
+        return ((long) width << 32) | height;
+    }
+
+    static long sizeOf(Bitmap bitmap)
+    {
+        if (ANY_SIZE)
+            return allocationSizeOf(bitmap);
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static long allocationSizeOf(Bitmap bitmap)
+    {
+        return bitmap.getAllocationByteCount();
+    }
+}
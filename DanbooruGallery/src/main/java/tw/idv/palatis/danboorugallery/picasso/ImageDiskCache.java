@@ -0,0 +1,348 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * A disk cache of images keyed by their content rather than by where they're downloaded from.
+ * <ul>
+ *     <li>objects/&lt;key&gt; holds the image. the key is the md5 of the image, plus the variant
+ *         and the host (e.g. "-preview-1") for the scaled down versions, when the md5 is known,
+ *         or a hash of the url otherwise.</li>
+ *     <li>aliases/&lt;hash of the url&gt; holds the content key of an url once it's known, so
+ *         the requests that only know the url (e.g. the thumbnails in the grid) find the image
+ *         downloaded from another host, too.</li>
+ * </ul>
+ * The least recently used objects are removed when the cache grows larger than its limit.
+ */
+public class ImageDiskCache
+{
+    private static final String TAG = "ImageDiskCache";
+
+    // the variants used to be shared by the hosts, those aliases don't match and are written again.
+    private static final Pattern sContentKeyPattern = Pattern.compile("[0-9a-f]{32}(-[a-z]+-[0-9]+)?");
+    private static final String URL_KEY_PREFIX = "u";
+    private static final float TRIM_TO = 0.9f;
+    private static final int MAX_CACHED_ALIASES = 1024;
+
+    private final File mDirectory;
+    private final File mObjectsDirectory;
+    private final File mAliasesDirectory;
+    private final long mMaxSize;
+    private long mSize = -1;    // -1 means not known yet
+
+    // the aliases are looked up for every image, keep the recent ones off the disk.
+    private final LruCache<String, String> mAliases = new LruCache<>(MAX_CACHED_ALIASES);
+
+    public ImageDiskCache(File directory, long maxSize)
+    {
+        mDirectory = directory;
+        mObjectsDirectory = new File(directory, "objects");
+        mAliasesDirectory = new File(directory, "aliases");
+        mMaxSize = maxSize;
+    }
+
+    public long getMaxSize()
+    {
+        return mMaxSize;
+    }
+
+    /**
+     * @return true if {@code key} is the content key of an image, i.e. the md5 of the image
+     *         with an optional variant and host suffix.
+     */
+    public static boolean isContentKey(String key)
+    {
+        return key != null && sContentKeyPattern.matcher(key).matches();
+    }
+
+    /**
+     * @return the key the image downloaded from {@code url} is stored with.
+     */
+    public String getKey(String url)
+    {
+        String key = readAlias(url);
+        return key != null ? key : URL_KEY_PREFIX + md5(url);
+    }
+
+    /**
+     * remember that {@code url} serves the image with {@code key}, an image already downloaded
+     * from {@code url} is moved to the content key, or dropped if the content is already here.
+     */
+    public void alias(String url, String key)
+    {
+        if (key.equals(readAlias(url)))
+            return;
+        mAliases.put(url, key);
+
+        String hash = md5(url);
+        try
+        {
+            mAliasesDirectory.mkdirs();
+            File temp = File.createTempFile(hash, ".tmp", mAliasesDirectory);
+            OutputStream out = new FileOutputStream(temp);
+            try
+            {
+                out.write(key.getBytes("UTF-8"));
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!temp.renameTo(new File(mAliasesDirectory, hash)))
+                temp.delete();
+        }
+        catch (IOException ex)
+        {
+            Log.d(TAG, "writing the alias of " + url + " failed.", ex);
+        }
+
+        File byUrl = new File(mObjectsDirectory, URL_KEY_PREFIX + hash);
+        if (byUrl.exists())
+        {
+            File byContent = new File(mObjectsDirectory, key);
+            long length = byUrl.length();
+            if (byContent.exists() || !byUrl.renameTo(byContent))
+            {
+                byUrl.delete();
+                synchronized (this)
+                {
+                    if (mSize != -1)
+                        mSize -= length;
+                }
+            }
+        }
+    }
+
+    private String readAlias(String url)
+    {
+        String key = mAliases.get(url);
+        if (key != null)
+            return key;
+
+        File alias = new File(mAliasesDirectory, md5(url));
+        if (!alias.exists())
+            return null;
+
+        try
+        {
+            InputStream in = new FileInputStream(alias);
+            try
+            {
+                byte[] buffer = new byte[64];
+                int length = 0, n;
+                while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1)
+                    length += n;
+                key = new String(buffer, 0, length, "UTF-8");
+                if (!isContentKey(key))
+                    return null;
+                mAliases.put(url, key);
+                return key;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the cached image, or null if there isn't one.
+     */
+    public File get(String key)
+    {
+        File file = new File(mObjectsDirectory, key);
+        if (!file.exists())
+            return null;
+        // least recently used goes first, some file systems don't support this, but that's okay.
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * read {@code in} to the end and store it as {@code key}, {@code in} is closed afterward.
+     *
+     * @return the stored image
+     */
+    public File put(String key, InputStream in)
+        throws IOException
+    {
+        File file = new File(mObjectsDirectory, key);
+        File temp;
+        try
+        {
+            mObjectsDirectory.mkdirs();
+            temp = File.createTempFile(key, ".tmp", mObjectsDirectory);
+            OutputStream out = new FileOutputStream(temp);
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    out.write(buffer, 0, n);
+            }
+            catch (IOException ex)
+            {
+                temp.delete();
+                throw ex;
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // someone else might have stored the same image in the mean time, it's the same anyway.
+        long length = temp.length();
+        if (!temp.renameTo(file))
+        {
+            temp.delete();
+            if (!file.exists())
+                throw new IOException("storing " + key + " failed.");
+            return file;
+        }
+
+        boolean trim;
+        synchronized (this)
+        {
+            if (mSize == -1)
+            {
+                removeLegacyCache();
+                mSize = sizeOf(mObjectsDirectory.listFiles());
+            }
+            else
+                mSize += length;
+            trim = mSize > mMaxSize;
+        }
+        if (trim)
+            trim();
+        return file;
+    }
+
+    private synchronized void trim()
+    {
+        // the cache could have been cleared under us, start from what's actually there.
+        File[] files = mObjectsDirectory.listFiles();
+        if (files == null)
+        {
+            mSize = 0;
+            return;
+        }
+        mSize = sizeOf(files);
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        long target = (long) (mMaxSize * TRIM_TO);
+        long cutoff = 0;
+        for (File file : files)
+        {
+            if (mSize <= target)
+                break;
+            long length = file.length();
+            long modified = file.lastModified();
+            if (file.delete())
+            {
+                mSize -= length;
+                cutoff = modified;
+            }
+        }
+
+        // the aliases older than everything left point to nothing, but they're cheap to keep
+        // around anyway, only drop the ones that are older than the objects we've dropped.
+        File[] aliases = mAliasesDirectory.listFiles();
+        if (aliases != null)
+            for (File alias : aliases)
+                if (alias.lastModified() <= cutoff)
+                    alias.delete();
+        Log.v(TAG, "trimmed to " + mSize + " bytes.");
+    }
+
+    private static long sizeOf(File[] files)
+    {
+        long size = 0;
+        if (files != null)
+            for (File file : files)
+                size += file.length();
+        return size;
+    }
+
+    /**
+     * the images used to be cached by the HTTP response cache in the root of the cache
+     * directory, remove whatever's left of it.
+     */
+    private void removeLegacyCache()
+    {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.isFile() && !file.getName().startsWith("."))
+                file.delete();
+    }
+
+    private static String md5(String string)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(string.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pulls the images likely to be shown soon into the disk cache, so showing them doesn't start
+ * from the network. Nothing is decoded, that's left to whoever shows them. A preload and a load
+ * of the same image share the download, see {@link OkHttpRefererDownloader#preload(Uri)}.
+ * Only to be used from the main thread.
+ */
+public class ImagePreloader
+{
+    private static final String TAG = "ImagePreloader";
+
+    private final OkHttpRefererDownloader mDownloader;
+    private final ExecutorService mExecutor;
+    private final HashMap<String, Future<?>> mRequests = new HashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private OnPreloadedListener mListener = null;
+
+    public interface OnPreloadedListener
+    {
+        /**
+         * {@code uri} is in the disk cache, or it won't be, it failed. called on the main thread.
+         *
+         * @param downloaded    whether it was downloaded, false if it was in the cache already or
+         *                      failed
+         */
+        public void onPreloaded(String uri, boolean downloaded);
+    }
+
+    public ImagePreloader(OkHttpRefererDownloader downloader, ExecutorService executor)
+    {
+        mDownloader = downloader;
+        mExecutor = executor;
+    }
+
+    public void setOnPreloadedListener(OnPreloadedListener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * preload {@code uris}, the most wanted first. whatever's still waiting from before but isn't
+     * in {@code uris} anymore is canceled.
+     */
+    public void preload(List<String> uris)
+    {
+        Iterator<Map.Entry<String, Future<?>>> it = mRequests.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Future<?>> entry = it.next();
+            // the finished ones are checked again, the image might have been trimmed from the
+            // disk cache since.
+            if (entry.getValue().isDone())
+                it.remove();
+            else if (!uris.contains(entry.getKey()))
+            {
+                // a download already running is left to finish, it's half way there anyway.
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        // the executor runs first come first serve within a priority.
+        for (final String uri : uris)
+        {
+            if (mRequests.containsKey(uri))
+                continue;
+            mRequests.put(uri, mExecutor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    boolean downloaded = false;
+                    try
+                    {
+                        downloaded = mDownloader.preload(Uri.parse(uri));
+                    }
+                    catch (IOException ex)
+                    {
+                        Log.d(TAG, "preloading " + uri + " failed.", ex);
+                    }
+                    postPreloaded(uri, downloaded);
+                }
+            }));
+        }
+    }
+
+    private void postPreloaded(final String uri, final boolean downloaded)
+    {
+        if (mListener == null)
+            return;
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mListener != null)
+                    mListener.onPreloaded(uri, downloaded);
+            }
+        });
+    }
+
+    public void cancel()
+    {
+        for (Future<?> request : mRequests.values())
+            request.cancel(false);
+        mRequests.clear();
+    }
+}
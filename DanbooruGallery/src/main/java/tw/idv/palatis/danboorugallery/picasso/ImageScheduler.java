@@ -0,0 +1,262 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.os.Process;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread pools for all the image loading, ordered by priority class.
+ * Picasso only takes an {@link ExecutorService}, so each priority class is handed out as its
+ * own {@link ExecutorService} view of the pools.
+ * The images on the screen and the ones loaded ahead run on separate pools. A download waits
+ * for a permit of its {@link ThroughputController} on its thread, the ones loaded ahead waiting
+ * for a permit never keep the images on the screen from getting a thread.
+ * Jobs canceled before they run (e.g. the ImageView has been recycled and bound to another
+ * image) are removed from the queue right away.
+ */
+public class ImageScheduler
+{
+    private static final String TAG = "ImageScheduler";
+
+    // lower runs first
+    public static final int PRIORITY_DETAIL = 0;        // the image on the screen
+    public static final int PRIORITY_THUMBNAIL = 1;     // thumbnails on the screen
+    public static final int PRIORITY_NEIGHBOUR = 2;     // the pages next to the one on the screen
+    public static final int PRIORITY_PREFETCH = 3;      // speculative
+
+    // the priority of the job running on the calling thread
+    private static final ThreadLocal<Integer> sCurrentPriority = new ThreadLocal<>();
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadPoolExecutor mExecutor;             // the images on the screen
+    private final ThreadPoolExecutor mBackgroundExecutor;   // the images loaded ahead
+
+    /**
+     * @param threads              the threads for the images on the screen
+     * @param backgroundThreads    the threads for the images loaded ahead
+     */
+    public ImageScheduler(int threads, int backgroundThreads)
+    {
+        mExecutor = createExecutor("Picasso-Scheduler-", threads);
+        mBackgroundExecutor = createExecutor("Picasso-Background-", backgroundThreads);
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String name, int threads)
+    {
+        return new ThreadPoolExecutor(
+            threads, threads,
+            0, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    return new Thread(name + mCount.incrementAndGet())
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    };
+                }
+            }
+        );
+    }
+
+    /**
+     * @return the priority of the job running on the calling thread, {@link #PRIORITY_PREFETCH}
+     *         when it's not run by a scheduler.
+     */
+    public static int getCurrentPriority()
+    {
+        Integer priority = sCurrentPriority.get();
+        return priority != null ? priority : PRIORITY_PREFETCH;
+    }
+
+    private ThreadPoolExecutor getExecutor(int priority)
+    {
+        return priority <= PRIORITY_THUMBNAIL ? mExecutor : mBackgroundExecutor;
+    }
+
+    /**
+     * @param threads    the threads for the images on the screen
+     */
+    public void setThreadCount(int threads)
+    {
+        // the core size can never be larger than the maximum size
+        if (threads > mExecutor.getMaximumPoolSize())
+        {
+            mExecutor.setMaximumPoolSize(threads);
+            mExecutor.setCorePoolSize(threads);
+        }
+        else
+        {
+            mExecutor.setCorePoolSize(threads);
+            mExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    public int getThreadCount()
+    {
+        return mExecutor.getCorePoolSize();
+    }
+
+    /**
+     * @param priority    one of the PRIORITY_* constants
+     * @return an {@link ExecutorService} that runs everything with {@code priority}
+     */
+    public ExecutorService getExecutorService(int priority)
+    {
+        return new PriorityExecutorService(priority);
+    }
+
+    private class PriorityFuture<T>
+        extends FutureTask<T>
+        implements Comparable<PriorityFuture<?>>
+    {
+        private final int mPriority;
+        private final long mOrder;
+
+        public PriorityFuture(Runnable runnable, T result, int priority)
+        {
+            super(runnable, result);
+            mPriority = priority;
+            mOrder = mSequence.getAndIncrement();
+        }
+
+        public PriorityFuture(Callable<T> callable, int priority)
+        {
+            super(callable);
+            mPriority = priority;
+            mOrder = mSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run()
+        {
+            sCurrentPriority.set(mPriority);
+            try
+            {
+                super.run();
+            }
+            finally
+            {
+                sCurrentPriority.remove();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean canceled = super.cancel(mayInterruptIfRunning);
+            if (canceled)
+                getExecutor(mPriority).remove(this);
+            return canceled;
+        }
+
+        @Override
+        public int compareTo(PriorityFuture<?> another)
+        {
+            if (mPriority != another.mPriority)
+                return mPriority < another.mPriority ? -1 : 1;
+            // first come first serve within the same priority
+            return mOrder < another.mOrder ? -1 : (mOrder == another.mOrder ? 0 : 1);
+        }
+    }
+
+    private class PriorityExecutorService
+        extends AbstractExecutorService
+    {
+        private final int mPriority;
+
+        public PriorityExecutorService(int priority)
+        {
+            mPriority = priority;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
+        {
+            return new PriorityFuture<>(runnable, value, mPriority);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable)
+        {
+            return new PriorityFuture<>(callable, mPriority);
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            if (command instanceof PriorityFuture)
+                getExecutor(((PriorityFuture<?>) command).mPriority).execute(command);
+            else
+                getExecutor(mPriority).execute(new PriorityFuture<Void>(command, null, mPriority));
+        }
+
+        // the pools are shared, nobody gets to shut them down.
+        @Override
+        public void shutdown() { }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return getExecutor(mPriority).isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return getExecutor(mPriority).isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException
+        {
+            return getExecutor(mPriority).awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -15,18 +15,34 @@
 */
 package tw.idv.palatis.danboorugallery.picasso;
 
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
-import com.squareup.okhttp.HttpResponseCache;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.picasso.Downloader;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.net.ssl.SSLContext;
 
@@ -35,23 +51,33 @@ public class OkHttpRefererDownloader implements Downloader
 {
     private static final String TAG = "OkHttpRefererDownloader";
 
-    static final String RESPONSE_SOURCE_ANDROID = "X-Android-Response-Source";
-    static final String RESPONSE_SOURCE_OKHTTP = "OkHttp-Response-Source";
-
     static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // 20s
     static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // 15s
 
     protected final OkHttpClient client;
+    private final ImageDiskCache cache;
+    private final ThumbnailCache thumbnails;
+    private final ThroughputController previewController;
+    private final ThroughputController fullController;
+    // the downloads running, by their cache key
+    private final HashMap<String, FutureTask<File>> downloads = new HashMap<>();
 
     /**
-     * Create new downloader that uses OkHttp. This will install an image cache into your application
-     * cache directory.
+     * Create new downloader that uses OkHttp. The images are stored in {@code cache} instead of
+     * the HTTP response cache, so the same image from another url is only downloaded once.
      *
-     * @param cacheDir The directory in which the cache should be stored
-     * @param maxSize The size limit for the cache.
+     * @param cache The cache the images are stored in.
+     * @param thumbnails Where the thumbnails (the images without a referer) are decoded into.
+     * @param previewController Measures the downloads without a referer (previews).
+     * @param fullController Measures the downloads with a referer (full images).
      */
-    public OkHttpRefererDownloader(final File cacheDir, final long maxSize) {
+    public OkHttpRefererDownloader(ImageDiskCache cache, ThumbnailCache thumbnails,
+                                   ThroughputController previewController, ThroughputController fullController) {
         client = new OkHttpClient();
+        this.cache = cache;
+        this.thumbnails = thumbnails;
+        this.previewController = previewController;
+        this.fullController = fullController;
 
         // don't use the global SSL context
         SSLContext sslContext;
@@ -62,19 +88,13 @@ public class OkHttpRefererDownloader implements Downloader
             throw new AssertionError(); // The system has no TLS. Just give up.
         }
         client.setSslSocketFactory(sslContext.getSocketFactory());
-
-        try {
-            client.setResponseCache(new HttpResponseCache(cacheDir, maxSize));
-        } catch (IOException ignored) {
-        }
     }
 
-    protected HttpURLConnection openConnection(Uri uri) throws IOException
+    protected HttpURLConnection openConnection(String url, String referer) throws IOException
     {
-        String[] url = TextUtils.split(uri.toString(), "\\|");
-        HttpURLConnection connection = client.open(new URL(url[0]));
-        if (url.length > 1)
-            connection.setRequestProperty("Referer", url[1]);
+        HttpURLConnection connection = client.open(new URL(url));
+        if (referer != null)
+            connection.setRequestProperty("Referer", referer);
         // HACK: fake user agent
         connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.2; WOW64; rv:26.0) Gecko/20100101 Firefox/26.0");
         connection.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
@@ -83,51 +103,322 @@ public class OkHttpRefererDownloader implements Downloader
     }
 
     @Override public Response load(Uri uri, boolean localCacheOnly) throws IOException {
-        HttpURLConnection connection = openConnection(uri);
-        connection.setUseCaches(true);
+        String[] parts = TextUtils.split(uri.toString(), "\\|");
+        String url = parts[0];
+        String referer = parts.length > 1 && !TextUtils.isEmpty(parts[1]) ? parts[1] : null;
+        // the size to decode the thumbnail to, "<width>x<height>"
+        int width = 0, height = 0;
+        if (parts.length > 2) {
+            String[] size = parts[2].split("x");
+            try {
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                width = height = 0;
+            }
+        }
+
+        // the url could be an alias of an image we already have, whoever served it.
+        String key = cache.getKey(url);
+        File file = cache.get(key);
+        if (file != null) {
+            return respond(file, referer == null, true, width, height);
+        }
         if (localCacheOnly) {
-            connection.setRequestProperty("Cache-Control", "only-if-cached,max-age=" + Integer.MAX_VALUE);
+            throw new ResponseException("504 " + url + " is not cached");
+        }
+
+        file = download(url, referer, key);
+        return respond(file, referer == null, false, width, height);
+    }
+
+    /**
+     * Make sure the image of {@code uri} is in the disk cache, without decoding it. For the
+     * images that aren't shown yet, but are likely to be soon. Loading the same image meanwhile
+     * waits for this download instead of starting another.
+     *
+     * @return true if it had to be downloaded, false if it was in the cache already.
+     */
+    public boolean preload(Uri uri) throws IOException {
+        String[] parts = TextUtils.split(uri.toString(), "\\|");
+        String url = parts[0];
+        String referer = parts.length > 1 && !TextUtils.isEmpty(parts[1]) ? parts[1] : null;
+
+        String key = cache.getKey(url);
+        if (cache.get(key) != null) {
+            return false;
         }
+        download(url, referer, key);
+        return true;
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode >= 300)
-        {
-            connection.disconnect();
-            throw new ResponseException(responseCode + " " + connection.getResponseMessage());
+    /**
+     * Download {@code url} into the cache as {@code key}. A download of the same key that's
+     * already running, e.g. the page next to the screen becoming visible, or a preload, is waited
+     * for instead of downloading it twice.
+     */
+    private File download(final String url, final String referer, final String key) throws IOException {
+        FutureTask<File> task;
+        boolean owner = false;
+        synchronized (downloads) {
+            task = downloads.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<File>() {
+                    @Override public File call() throws IOException {
+                        // finished just before we looked
+                        File file = cache.get(key);
+                        return file != null ? file : downloadNow(url, referer, key);
+                    }
+                });
+                downloads.put(key, task);
+                owner = true;
+            }
         }
 
-        String responseSource = connection.getHeaderField(RESPONSE_SOURCE_OKHTTP);
-        if (responseSource == null) {
-            responseSource = connection.getHeaderField(RESPONSE_SOURCE_ANDROID);
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (downloads) {
+                    downloads.remove(key);
+                }
+            }
         }
-        boolean fromCache = parseResponseSourceHeader(responseSource);
 
-        return new Response(connection.getInputStream(), fromCache);
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + url);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
     }
 
-    /** Thrown for non-2XX responses. */
-    class ResponseException extends IOException {
-        public ResponseException(String message) {
-            super(message);
+    private File downloadNow(String url, String referer, String key) throws IOException {
+        // the previews and the full images each run no more downloads than their controller
+        // allows, whichever kind is queued up in the scheduler. the image on the screen gets
+        // the next permit before the ones loaded ahead.
+        ThroughputController controller = referer == null ? previewController : fullController;
+        try {
+            controller.acquire(ImageScheduler.getCurrentPriority());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to download " + url);
+        }
+
+        try {
+            HttpURLConnection connection = openConnection(url, referer);
+            connection.setUseCaches(false);
+
+            long start = SystemClock.uptimeMillis();
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode();
+            } catch (IOException ex) {
+                controller.onDownloadStarted();
+                controller.onDownloadFailed();
+                throw ex;
+            }
+            if (responseCode >= 300)
+            {
+                connection.disconnect();
+                throw new ResponseException(responseCode + " " + connection.getResponseMessage());
+            }
+
+            // the whole image is needed for decoding anyway, so it goes to the disk first.
+            controller.onDownloadStarted();
+            return cache.put(key, new MeasuredInputStream(
+                connection.getInputStream(), controller, start, SystemClock.uptimeMillis() - start));
+        } finally {
+            controller.release();
         }
     }
 
-    /** Returns {@code true} if header indicates the response body was loaded from the disk cache. */
-    static boolean parseResponseSourceHeader(String header) {
-        if (header == null) {
-            return false;
+    private Response respond(File file, boolean thumbnail, boolean fromCache, int width, int height)
+            throws IOException {
+        if (!thumbnail || thumbnails == null) {
+            return new Response(new FileInputStream(file), fromCache);
         }
-        String[] parts = header.split(" ", 2);
-        if ("CACHE".equals(parts[0])) {
-            return true;
+
+        // decode the thumbnails here so they can reuse the bitmaps the grid doesn't use anymore,
+        // Picasso always decodes into a new bitmap.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        int imageWidth = options.outWidth;
+        int imageHeight = options.outHeight;
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            throw new IOException("decoding " + file + " failed.");
         }
-        if (parts.length == 1) {
-            return false;
+
+        // center crop to the requested size, but never scale up.
+        Rect crop = new Rect(0, 0, imageWidth, imageHeight);
+        int targetWidth = imageWidth;
+        int targetHeight = imageHeight;
+        if (width > 0 && height > 0) {
+            if ((long) imageWidth * height > (long) imageHeight * width) {
+                int cropWidth = (int) ((long) imageHeight * width / height);
+                crop.left = (imageWidth - cropWidth) / 2;
+                crop.right = crop.left + cropWidth;
+            } else {
+                int cropHeight = (int) ((long) imageWidth * height / width);
+                crop.top = (imageHeight - cropHeight) / 2;
+                crop.bottom = crop.top + cropHeight;
+            }
+            targetWidth = Math.min(width, crop.width());
+            targetHeight = Math.min(height, crop.height());
+        }
+
+        int sampleSize = 1;
+        while (crop.width() / (sampleSize * 2) >= targetWidth && crop.height() / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // before KitKat only JPEG and PNG can be decoded into an existing bitmap, and only
+        // without sampling.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = thumbnails.getReusableBitmap(
+                (imageWidth + sampleSize - 1) / sampleSize, (imageHeight + sampleSize - 1) / sampleSize);
+        } else if (sampleSize == 1 &&
+            ("image/jpeg".equals(options.outMimeType) || "image/png".equals(options.outMimeType))) {
+            options.inBitmap = thumbnails.getReusableBitmap(imageWidth, imageHeight);
         }
+
+        Bitmap decoded;
         try {
-            return "CONDITIONAL_CACHE".equals(parts[0]) && Integer.parseInt(parts[1]) == 304;
-        } catch (NumberFormatException e) {
-            return false;
+            decoded = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException ex) {
+            // the bitmap can't be reused after all, it's gone anyway.
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (decoded == null) {
+            throw new IOException("decoding " + file + " failed.");
+        }
+        if (decoded.getWidth() == targetWidth && decoded.getHeight() == targetHeight) {
+            return new Response(decoded, fromCache);
+        }
+
+        // scale the visible part into a bitmap of the target size, most thumbnails end up with
+        // the same size, so there's usually one in the pool.
+        Bitmap bitmap = thumbnails.getReusableBitmap(targetWidth, targetHeight);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        } else if (bitmap.getWidth() != targetWidth || bitmap.getHeight() != targetHeight) {
+            reconfigure(bitmap, targetWidth, targetHeight);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+
+        float scaleX = (float) decoded.getWidth() / imageWidth;
+        float scaleY = (float) decoded.getHeight() / imageHeight;
+        Rect src = new Rect(
+            (int) (crop.left * scaleX), (int) (crop.top * scaleY),
+            (int) (crop.right * scaleX), (int) (crop.bottom * scaleY));
+        new Canvas(bitmap).drawBitmap(decoded, src, new Rect(0, 0, targetWidth, targetHeight), sScalePaint);
+        thumbnails.putReusableBitmap(decoded);
+        return new Response(bitmap, fromCache);
+    }
+
+    private static final Paint sScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height) {
+        // only happens on KitKat, the pool only hands out bitmaps of the exact size before it.
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Reports the size and the timing of a response body to a {@link ThroughputController}. */
+    private static class MeasuredInputStream extends FilterInputStream {
+        private final ThroughputController controller;
+        private final long start;
+        private final long latency;
+        private long bytes = 0;
+        private boolean reported = false;
+
+        MeasuredInputStream(InputStream in, ThroughputController controller, long start, long latency) {
+            super(in);
+            this.controller = controller;
+            this.start = start;
+            this.latency = latency;
+        }
+
+        @Override public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException ex) {
+                failed();
+                throw ex;
+            }
+            if (b == -1) {
+                finished();
+            } else {
+                ++bytes;
+            }
+            return b;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n;
+            try {
+                n = super.read(buffer, offset, count);
+            } catch (IOException ex) {
+                failed();
+                throw ex;
+            }
+            if (n == -1) {
+                finished();
+            } else {
+                bytes += n;
+            }
+            return n;
+        }
+
+        @Override public long skip(long count) throws IOException {
+            long n = super.skip(count);
+            bytes += n;
+            return n;
+        }
+
+        // decoders often stop before the end of the stream, what's read so far still counts.
+        @Override public void close() throws IOException {
+            finished();
+            super.close();
+        }
+
+        private void finished() {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            controller.onDownloadFinished(bytes, latency, SystemClock.uptimeMillis() - start);
+        }
+
+        private void failed() {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            controller.onDownloadFailed();
+        }
+    }
+
+    /** Thrown for non-2XX responses. */
+    class ResponseException extends IOException {
+        public ResponseException(String message) {
+            super(message);
         }
     }
 }
\ No newline at end of file
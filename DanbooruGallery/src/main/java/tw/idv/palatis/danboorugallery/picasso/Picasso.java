@@ -22,25 +22,29 @@ import android.annotation.TargetApi;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Environment;
 import android.os.StatFs;
-import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.diegocarloslima.byakugallery.TileBitmapDrawable;
+import com.diegocarloslima.byakugallery.TileDiskCache;
 import com.squareup.picasso.Cache;
 import com.squareup.picasso.Downloader;
 import com.squareup.picasso.LruCache;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import tw.idv.palatis.danboorugallery.DanbooruGallerySettings;
 import tw.idv.palatis.danboorugallery.R;
+import tw.idv.palatis.danboorugallery.model.Post;
 
 import static android.content.pm.ApplicationInfo.FLAG_LARGE_HEAP;
 import static android.os.Build.VERSION.SDK_INT;
@@ -52,16 +56,30 @@ public class Picasso
 
     private static final String PICASSO_CACHE = ".picasso-cache";
     private static final int MIN_DISK_CACHE_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final String TILE_CACHE = "tiles";
+    private static final int TILE_CACHE_FRACTION = 8;
 
+    private static ImageDiskCache sDiskCache = null;
     private static Downloader sDownloader = null;
     private static Cache sMemCache = null;
+    private static ThumbnailCache sThumbnailCache = null;
     private static com.squareup.picasso.Picasso sInstancePrefetch = null;
+    private static com.squareup.picasso.Picasso sInstanceNeighbour = null;
     private static com.squareup.picasso.Picasso sInstancePreview = null;
     private static com.squareup.picasso.Picasso sInstance = null;
 
-    private static ThreadPoolExecutor sExecutorPrefetch = null;
-    private static ThreadPoolExecutor sExecutorPreview = null;
-    private static ThreadPoolExecutor sExecutor = null;
+    // one pool for all the instances above, the instances only carry the priority.
+    private static ImageScheduler sScheduler = null;
+
+    private static volatile int sThumbnailSize = 0;
+
+    // how many pages past the ones next to the screen are preloaded, depends on the network.
+    private static final int PRELOAD_PAGES_UNMETERED = 4;
+    private static final int PRELOAD_PAGES_METERED = 1;
+    // the preloaded images shouldn't push each other out of the disk cache.
+    private static final int PRELOAD_CACHE_FRACTION = 4;
+    private static volatile int sPreloadPages = PRELOAD_PAGES_METERED;
+    private static ImagePreloader sPreloader = null;
 
     private static SharedPreferences.OnSharedPreferenceChangeListener sOnSharedPreferenceChangeListener =
         new SharedPreferences.OnSharedPreferenceChangeListener()
@@ -72,6 +90,8 @@ public class Picasso
                 boolean debugging = DanbooruGallerySettings.getShowAsyncImageLoaderIndicator();
                 if (sInstancePrefetch != null)
                     sInstancePrefetch.setDebugging(debugging);
+                if (sInstanceNeighbour != null)
+                    sInstanceNeighbour.setDebugging(debugging);
                 if (sInstancePreview != null)
                     sInstancePreview.setDebugging(debugging);
                 if (sInstance != null)
@@ -81,92 +101,71 @@ public class Picasso
 
     public static void init(Context context)
     {
-        sMemCache = new LruCache(_calculateMemoryCacheSize(context));
-
-        sExecutorPrefetch = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        sExecutorPreview = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        sExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        // the full images keep the whole budget, one of them can take a good part of it.
+        // the thumbnails are decoded at the cell size and reuse each other's bitmaps, half as
+        // much on top of it holds a few screens of them.
+        int memoryCacheSize = _calculateMemoryCacheSize(context);
+        sMemCache = new LruCache(memoryCacheSize);
+        sThumbnailCache = new ThumbnailCache(memoryCacheSize / 2);
+
+        sScheduler = new ImageScheduler(3, BACKGROUND_THREADS);
+        sPreviewController.setOnConcurrencyChangedListener(sOnConcurrencyChangedListener);
+        sFullController.setOnConcurrencyChangedListener(sOnConcurrencyChangedListener);
+        updateThreadCount();
+
+        // creating the cache directory might have to tell the user something, that only works
+        // on the main thread.
+        getDiskCache(context);
 
         DanbooruGallerySettings.registerOnSharedPreferenceChangeListener(sOnSharedPreferenceChangeListener);
     }
 
-    public static void adjustThreadCount(NetworkInfo info)
-    {
-        if (info == null || !info.isConnectedOrConnecting())
+    // the concurrency of the downloads is decided by how they perform, not by the network type.
+    // the threads loading the images ahead, they may all be waiting for a permit without keeping
+    // the images on the screen from running.
+    private static final int BACKGROUND_THREADS = 2;
+    private static final ThroughputController sPreviewController = new ThroughputController("previews", 1, 8, 3);
+    private static final ThroughputController sFullController = new ThroughputController("full images", 1, 4, 1);
+    private static final ThroughputController.OnConcurrencyChangedListener sOnConcurrencyChangedListener =
+        new ThroughputController.OnConcurrencyChangedListener()
         {
-            // sExecutorPrefetch.setCorePoolSize(1);
-            // sExecutorPrefetch.setMaximumPoolSize(1);
-            sExecutorPreview.setCorePoolSize(3);
-            sExecutorPreview.setMaximumPoolSize(3);
-            sExecutor.setCorePoolSize(1);
-            sExecutor.setMaximumPoolSize(1);
-        }
-        else
-        {
-            switch (info.getType())
+            @Override
+            public void onConcurrencyChanged(ThroughputController controller, int concurrency)
             {
-                case ConnectivityManager.TYPE_WIFI:
-                case ConnectivityManager.TYPE_WIMAX:
-                case ConnectivityManager.TYPE_ETHERNET:
-                    // sExecutorPrefetch.setCorePoolSize(1);
-                    // sExecutorPrefetch.setMaximumPoolSize(1);
-                    sExecutorPreview.setCorePoolSize(4);
-                    sExecutorPreview.setMaximumPoolSize(4);
-                    sExecutor.setCorePoolSize(2);
-                    sExecutor.setMaximumPoolSize(2);
-                    break;
-                case ConnectivityManager.TYPE_MOBILE:
-                    switch (info.getSubtype())
-                    {
-                        case TelephonyManager.NETWORK_TYPE_LTE: // 4G
-                        case TelephonyManager.NETWORK_TYPE_HSPAP:
-                        case TelephonyManager.NETWORK_TYPE_EHRPD:
-                            // sExecutorPrefetch.setCorePoolSize(1);
-                            // sExecutorPrefetch.setMaximumPoolSize(1);
-                            sExecutorPreview.setCorePoolSize(3);
-                            sExecutorPreview.setMaximumPoolSize(3);
-                            sExecutor.setCorePoolSize(2);
-                            sExecutor.setMaximumPoolSize(2);
-                            break;
-                        case TelephonyManager.NETWORK_TYPE_UMTS: // 3G
-                        case TelephonyManager.NETWORK_TYPE_CDMA:
-                        case TelephonyManager.NETWORK_TYPE_EVDO_0:
-                        case TelephonyManager.NETWORK_TYPE_EVDO_A:
-                        case TelephonyManager.NETWORK_TYPE_EVDO_B:
-                            // sExecutorPrefetch.setCorePoolSize(1);
-                            // sExecutorPrefetch.setMaximumPoolSize(1);
-                            sExecutorPreview.setCorePoolSize(2);
-                            sExecutorPreview.setMaximumPoolSize(2);
-                            sExecutor.setCorePoolSize(1);
-                            sExecutor.setMaximumPoolSize(1);
-                            break;
-                        case TelephonyManager.NETWORK_TYPE_GPRS: // 2G
-                        case TelephonyManager.NETWORK_TYPE_EDGE:
-                            // sExecutorPrefetch.setCorePoolSize(1);
-                            // sExecutorPrefetch.setMaximumPoolSize(1);
-                            sExecutorPreview.setCorePoolSize(1);
-                            sExecutorPreview.setMaximumPoolSize(1);
-                            sExecutor.setCorePoolSize(1);
-                            sExecutor.setMaximumPoolSize(1);
-                            break;
-                        default:
-                            // sExecutorPrefetch.setCorePoolSize(1);
-                            // sExecutorPrefetch.setMaximumPoolSize(1);
-                            sExecutorPreview.setCorePoolSize(4);
-                            sExecutorPreview.setMaximumPoolSize(4);
-                            sExecutor.setCorePoolSize(2);
-                            sExecutor.setMaximumPoolSize(2);
-                    }
-                    break;
-                default:
-                    // sExecutorPrefetch.setCorePoolSize(1);
-                    // sExecutorPrefetch.setMaximumPoolSize(1);
-                    sExecutorPreview.setCorePoolSize(4);
-                    sExecutorPreview.setMaximumPoolSize(4);
-                    sExecutor.setCorePoolSize(2);
-                    sExecutor.setMaximumPoolSize(2);
+                updateThreadCount();
             }
-        }
+        };
+
+    private static void updateThreadCount()
+    {
+        if (sScheduler == null)
+            return;
+        // previews + full images on the screen. the downloads wait for a permit of their
+        // controller, a thread waiting for one means that kind is already downloading at full
+        // speed. the images loaded ahead have their own threads, see BACKGROUND_THREADS.
+        sScheduler.setThreadCount(sPreviewController.getConcurrency() + sFullController.getConcurrency());
+    }
+
+    /**
+     * start measuring all over again on the new network.
+     */
+    public static void onNetworkChanged(NetworkInfo info, boolean metered)
+    {
+        sPreviewController.reset();
+        sFullController.reset();
+
+        if (info == null || !info.isConnected())
+            sPreloadPages = 0;
+        else
+            sPreloadPages = metered ? PRELOAD_PAGES_METERED : PRELOAD_PAGES_UNMETERED;
+    }
+
+    /**
+     * @return the state of the download concurrency controllers, for debugging.
+     */
+    public static String getThroughputState()
+    {
+        return sPreviewController + "\n" + sFullController;
     }
 
     public static com.squareup.picasso.Picasso with(Context context)
@@ -176,7 +175,7 @@ public class Picasso
             sInstance = new com.squareup.picasso.Picasso.Builder(context)
                 .memoryCache(sMemCache)
                 .downloader(getDownloader(context))
-                .executor(sExecutor)
+                .executor(sScheduler.getExecutorService(ImageScheduler.PRIORITY_DETAIL))
                 .debugging(DanbooruGallerySettings.getShowAsyncImageLoaderIndicator())
                 .build();
         }
@@ -188,37 +187,211 @@ public class Picasso
         if (sInstancePreview == null)
         {
             sInstancePreview = new com.squareup.picasso.Picasso.Builder(context)
-                .memoryCache(sMemCache)
+                .memoryCache(sThumbnailCache)
                 .downloader(getDownloader(context))
-                .executor(sExecutorPreview)
+                .executor(sScheduler.getExecutorService(ImageScheduler.PRIORITY_THUMBNAIL))
                 .debugging(DanbooruGallerySettings.getShowAsyncImageLoaderIndicator())
                 .build();
         }
         return sInstancePreview;
     }
 
+    /**
+     * for the thumbnails not on the screen yet, they're fetched into the cache the grid reads.
+     */
     public static com.squareup.picasso.Picasso withPrefetch(Context context)
     {
         if (sInstancePrefetch == null)
         {
             sInstancePrefetch = new com.squareup.picasso.Picasso.Builder(context)
-                .memoryCache(sMemCache)
+                .memoryCache(sThumbnailCache)
                 .downloader(getDownloader(context))
-                .executor(sExecutorPrefetch)
+                .executor(sScheduler.getExecutorService(ImageScheduler.PRIORITY_PREFETCH))
                 .debugging(DanbooruGallerySettings.getShowAsyncImageLoaderIndicator())
                 .build();
         }
         return sInstancePrefetch;
     }
 
-    public static Downloader getDownloader(Context context)
+    /**
+     * for the images not on the screen yet, but likely to be soon. (e.g. the next page)
+     */
+    public static com.squareup.picasso.Picasso withNeighbour(Context context)
+    {
+        if (sInstanceNeighbour == null)
+        {
+            sInstanceNeighbour = new com.squareup.picasso.Picasso.Builder(context)
+                .memoryCache(sMemCache)
+                .downloader(getDownloader(context))
+                .executor(sScheduler.getExecutorService(ImageScheduler.PRIORITY_NEIGHBOUR))
+                .debugging(DanbooruGallerySettings.getShowAsyncImageLoaderIndicator())
+                .build();
+        }
+        return sInstanceNeighbour;
+    }
+
+    /**
+     * cancel whatever any of the instances is loading into {@code view}.
+     */
+    public static void cancelRequest(ImageView view)
+    {
+        if (sInstance != null)
+            sInstance.cancelRequest(view);
+        if (sInstanceNeighbour != null)
+            sInstanceNeighbour.cancelRequest(view);
+        if (sInstancePreview != null)
+            sInstancePreview.cancelRequest(view);
+    }
+
+    public static synchronized Downloader getDownloader(Context context)
     {
         if (sDownloader == null)
+            sDownloader = new OkHttpRefererDownloader(getDiskCache(context), sThumbnailCache, sPreviewController, sFullController);
+        return sDownloader;
+    }
+
+    private static synchronized ImageDiskCache getDiskCache(Context context)
+    {
+        if (sDiskCache == null)
         {
             File cache = _createDefaultCacheDir(context);
-            sDownloader = new OkHttpRefererDownloader(cache, calculateDiskCacheSize(cache));
+            long size = calculateDiskCacheSize(cache);
+            sDiskCache = new ImageDiskCache(cache, size);
+            // the decoded tiles of the huge images are only worth so much, they can be decoded again.
+            TileBitmapDrawable.setDiskCache(new TileDiskCache(new File(cache, TILE_CACHE), size / TILE_CACHE_FRACTION));
         }
-        return sDownloader;
+        return sDiskCache;
+    }
+
+    /**
+     * @param uri    "url|referer", as loaded through the instances
+     * @return the file the image of {@code uri} is cached in, or null if it isn't cached. open it
+     *         right away, it could be trimmed from the cache later on.
+     */
+    public static File getCachedFile(Context context, String uri)
+    {
+        String url = uri.split("\\|", 2)[0];
+        ImageDiskCache cache = getDiskCache(context);
+        return cache.get(cache.getKey(url));
+    }
+
+    // the aliases are a few small files per post, written one after another off the fetching threads.
+    private static final ExecutorService sContentKeyExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * tell the disk cache what the urls of {@code posts} serve, so an image already downloaded
+     * from another host or url isn't downloaded again. the disk is touched in the background.
+     */
+    public static void addContentKeys(Context context, List<Post> posts)
+    {
+        final ImageDiskCache cache = getDiskCache(context);
+        final List<Post> copy = new ArrayList<>(posts);
+        sContentKeyExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Post post : copy)
+                {
+                    String[] urls = new String[] { post.file_url, post.file_url_large, post.file_url_preview };
+                    for (String url : urls)
+                    {
+                        String key = post.getContentKey(url);
+                        if (ImageDiskCache.isContentKey(key))
+                            cache.alias(url, key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the uri to load the full image of {@code post} with, as set in the settings.
+     */
+    public static String getFullImageUri(Post post)
+    {
+        // FIXME: fake the referer
+        return (DanbooruGallerySettings.getDownloadFullsize() ? post.file_url : post.file_url_large) +
+            "|" + post.getReferer();
+    }
+
+    /**
+     * @return how many posts past the ones next to the screen should be preloaded.
+     */
+    public static int getPreloadPageCount()
+    {
+        return sPreloadPages;
+    }
+
+    private static synchronized ImagePreloader getPreloader(Context context)
+    {
+        if (sPreloader == null)
+            sPreloader = createPreloader(context);
+        return sPreloader;
+    }
+
+    /**
+     * @return a preloader of its own, for whoever needs to know when the images are preloaded.
+     *         the downloads are shared with the other preloaders and the instances.
+     */
+    public static ImagePreloader createPreloader(Context context)
+    {
+        return new ImagePreloader(
+            (OkHttpRefererDownloader) getDownloader(context),
+            sScheduler.getExecutorService(ImageScheduler.PRIORITY_NEIGHBOUR));
+    }
+
+    /**
+     * pull the full images and the previews of {@code posts} into the disk cache, the most
+     * wanted first, as many as fit in a fraction of the disk cache. whatever was preloading
+     * before and isn't wanted anymore is canceled. only from the main thread.
+     */
+    public static void preload(Context context, List<Post> posts)
+    {
+        long budget = getDiskCache(context).getMaxSize() / PRELOAD_CACHE_FRACTION;
+        List<String> uris = new ArrayList<>(posts.size() * 2);
+        for (Post post : posts)
+        {
+            // the size of the original, the large version can only be smaller.
+            budget -= post.file_size;
+            if (budget < 0)
+                break;
+            uris.add(post.file_url_preview);
+            uris.add(getFullImageUri(post));
+        }
+        getPreloader(context).preload(uris);
+    }
+
+    public static void cancelPreloading()
+    {
+        if (sPreloader != null)
+            sPreloader.cancel();
+    }
+
+    /**
+     * the thumbnails are decoded to fit a {@code size} x {@code size} square, i.e. a cell of the grid.
+     */
+    public static void setThumbnailSize(int size)
+    {
+        sThumbnailSize = size;
+    }
+
+    public static int getThumbnailSize()
+    {
+        return sThumbnailSize;
+    }
+
+    /**
+     * @return the uri to load {@code url} as a thumbnail with. the size is part of the uri, so
+     *         the thumbnails of different sizes are cached separately.
+     */
+    public static String getThumbnailUri(String url)
+    {
+        int size = sThumbnailSize;
+        if (url == null || size <= 0)
+            return url;
+        // no referer for the thumbnails
+        return url + "||" + size + "x" + size;
     }
 
     public static Cache getMemCache()
@@ -226,6 +399,14 @@ public class Picasso
         return sMemCache;
     }
 
+    /**
+     * the memory cache of {@link #withPreview(Context)}, only for the grid.
+     */
+    public static ThumbnailCache getThumbnailCache()
+    {
+        return sThumbnailCache;
+    }
+
     public static long calculateDiskCacheSize(File dir)
     {
         long size = MIN_DISK_CACHE_SIZE;
@@ -288,6 +469,8 @@ public class Picasso
     {
         if (sMemCache != null)
             sMemCache.clear();
+        if (sThumbnailCache != null)
+            sThumbnailCache.clear();
     }
 
     public static void onTrimMemory(int level)
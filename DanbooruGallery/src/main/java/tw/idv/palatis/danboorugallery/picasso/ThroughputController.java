@@ -0,0 +1,255 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * Decides how many downloads of a kind should run at once from what the downloads actually
+ * achieve, additive increase / multiplicative decrease:
+ * <ul>
+ *     <li>the concurrency grows by 1 / concurrency for each download that finishes without
+ *         signs of congestion, i.e. about 1 per round of downloads.</li>
+ *     <li>it's cut by {@link #DECREASE_FACTOR} when a download fails, when the time to the
+ *         first byte goes well above the best seen (requests are queueing up somewhere), or
+ *         when the total throughput drops although more downloads are running.</li>
+ * </ul>
+ * The downloads take a permit with {@link #acquire(int)} before they start, so no more than the
+ * concurrency of them run at once. The next permit goes to the waiting download with the
+ * highest priority.
+ */
+public class ThroughputController
+{
+    private static final String TAG = "ThroughputController";
+
+    private static final float SMOOTHING = 0.25f;
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final float THROUGHPUT_DROP = 0.75f;
+    private static final float LATENCY_RISE = 2.0f;
+    private static final long LATENCY_SLACK = 100; // ms
+
+    public interface OnConcurrencyChangedListener
+    {
+        public void onConcurrencyChanged(ThroughputController controller, int concurrency);
+    }
+
+    private final String mName;
+    private final int mMinConcurrency;
+    private final int mMaxConcurrency;
+    private final int mInitialConcurrency;
+    private OnConcurrencyChangedListener mListener = null;
+
+    private float mConcurrency;
+    private int mRunning = 0;
+    private int mPermits = 0;           // the downloads holding a permit
+    // priority -> the downloads waiting for a permit
+    private final SparseIntArray mWaiting = new SparseIntArray();
+    private float mThroughput = 0;      // bytes/s of all running downloads, smoothed
+    private float mBestThroughput = 0;  // bytes/s
+    private float mLatency = 0;         // ms to the first byte, smoothed
+    private float mMinLatency = Float.MAX_VALUE;
+    private int mSamples = 0;
+    private int mFailures = 0;
+
+    public ThroughputController(String name, int min, int max, int initial)
+    {
+        mName = name;
+        mMinConcurrency = min;
+        mMaxConcurrency = max;
+        mInitialConcurrency = initial;
+        mConcurrency = initial;
+    }
+
+    public synchronized void setOnConcurrencyChangedListener(OnConcurrencyChangedListener listener)
+    {
+        mListener = listener;
+    }
+
+    public synchronized int getConcurrency()
+    {
+        return (int) mConcurrency;
+    }
+
+    /**
+     * forget everything measured, e.g. we're on another network now.
+     */
+    public void reset()
+    {
+        synchronized (this)
+        {
+            mConcurrency = mInitialConcurrency;
+            mThroughput = 0;
+            mBestThroughput = 0;
+            mLatency = 0;
+            mMinLatency = Float.MAX_VALUE;
+            mSamples = 0;
+            mFailures = 0;
+        }
+        notifyConcurrencyChanged();
+    }
+
+    /**
+     * wait until another download of this kind may run, and no download with a higher priority
+     * is waiting. {@link #release()} when done, whatever the outcome.
+     *
+     * @param priority    one of the ImageScheduler.PRIORITY_*, lower goes first
+     */
+    public synchronized void acquire(int priority)
+        throws InterruptedException
+    {
+        mWaiting.put(priority, mWaiting.get(priority) + 1);
+        try
+        {
+            while (mPermits >= (int) mConcurrency || isWaitingBefore(priority))
+                wait();
+            ++mPermits;
+        }
+        finally
+        {
+            mWaiting.put(priority, mWaiting.get(priority) - 1);
+            // the ones after us could be next, or we gave up
+            notifyAll();
+        }
+    }
+
+    private boolean isWaitingBefore(int priority)
+    {
+        // the keys are sorted
+        for (int i = 0;i < mWaiting.size() && mWaiting.keyAt(i) < priority;++i)
+            if (mWaiting.valueAt(i) > 0)
+                return true;
+        return false;
+    }
+
+    public synchronized void release()
+    {
+        mPermits = Math.max(mPermits - 1, 0);
+        notifyAll();
+    }
+
+    public synchronized void onDownloadStarted()
+    {
+        ++mRunning;
+    }
+
+    /**
+     * @param bytes       size of the response body
+     * @param latency     ms from the request to the response headers
+     * @param duration    ms from the request to the end of the body
+     */
+    public void onDownloadFinished(long bytes, long latency, long duration)
+    {
+        int oldConcurrency;
+        int newConcurrency;
+        synchronized (this)
+        {
+            oldConcurrency = (int) mConcurrency;
+
+            // the downloads running along with this one share the bandwidth
+            int running = Math.max(mRunning, 1);
+            mRunning = Math.max(mRunning - 1, 0);
+            float throughput = bytes * 1000.0f / Math.max(duration, 1) * running;
+
+            if (mSamples++ == 0)
+            {
+                mThroughput = throughput;
+                mLatency = latency;
+            }
+            else
+            {
+                mThroughput += (throughput - mThroughput) * SMOOTHING;
+                mLatency += (latency - mLatency) * SMOOTHING;
+            }
+            mMinLatency = Math.min(mMinLatency, latency);
+
+            boolean queueing = mLatency > mMinLatency * LATENCY_RISE + LATENCY_SLACK;
+            boolean dropped = mThroughput < mBestThroughput * THROUGHPUT_DROP;
+            if (queueing || dropped)
+            {
+                decrease();
+                // start over from what we have now
+                mBestThroughput = mThroughput;
+                mLatency = mMinLatency;
+            }
+            else
+            {
+                mConcurrency = Math.min(mConcurrency + 1.0f / mConcurrency, mMaxConcurrency);
+                mBestThroughput = Math.max(mBestThroughput, mThroughput);
+            }
+            newConcurrency = (int) mConcurrency;
+        }
+
+        if (oldConcurrency != newConcurrency)
+            notifyConcurrencyChanged();
+    }
+
+    /**
+     * the download was aborted or failed, could be nothing but a recycled view, could be
+     * a congested link.
+     */
+    public void onDownloadFailed()
+    {
+        int oldConcurrency;
+        int newConcurrency;
+        synchronized (this)
+        {
+            oldConcurrency = (int) mConcurrency;
+            mRunning = Math.max(mRunning - 1, 0);
+            ++mFailures;
+            decrease();
+            newConcurrency = (int) mConcurrency;
+        }
+
+        if (oldConcurrency != newConcurrency)
+            notifyConcurrencyChanged();
+    }
+
+    private void decrease()
+    {
+        mConcurrency = Math.max(mConcurrency * DECREASE_FACTOR, mMinConcurrency);
+    }
+
+    private void notifyConcurrencyChanged()
+    {
+        OnConcurrencyChangedListener listener;
+        int concurrency;
+        synchronized (this)
+        {
+            listener = mListener;
+            concurrency = (int) mConcurrency;
+            // more permits to hand out, maybe.
+            notifyAll();
+        }
+        Log.v(TAG, toString());
+        if (listener != null)
+            listener.onConcurrencyChanged(this, concurrency);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+            "%s: concurrency %.2f (%d-%d), running %d (%d permits), throughput %.1f KB/s (best %.1f), latency %.0f ms (min %.0f), %d samples, %d failures",
+            mName, mConcurrency, mMinConcurrency, mMaxConcurrency, mRunning, mPermits,
+            mThroughput / 1024, mBestThroughput / 1024,
+            mLatency, mMinLatency == Float.MAX_VALUE ? 0 : mMinLatency,
+            mSamples, mFailures);
+    }
+}
@@ -0,0 +1,219 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+import java.util.WeakHashMap;
+
+/**
+ * The memory cache of the grid thumbnails.
+ * A thumbnail falling out of the cache goes to a {@link BitmapPool} once no view shows it
+ * anymore, so the next thumbnail can be decoded into it instead of a new allocation. The pool
+ * shares the size limit with the cache: it's given whatever the cache doesn't use.
+ *
+ * Only the views reporting through {@link #onDrawableChanged(Drawable, Drawable)} may show the
+ * thumbnails from this cache, or a bitmap still on the screen could be decoded over.
+ * A bitmap handed out by {@link #get(String)} or {@link #set(String, Bitmap)} is on its way to a
+ * view, it's kept out of the pool until a view shows it.
+ */
+public class ThumbnailCache
+    implements Cache
+{
+    private static final String TAG = "ThumbnailCache";
+
+    private final int mMaxSize;
+    private final LruCache<String, Bitmap> mCache;
+    private final BitmapPool mPool = new BitmapPool();
+
+    // how many views are showing each bitmap
+    private final WeakHashMap<Bitmap, Integer> mDisplayCount = new WeakHashMap<>();
+    // how many times each bitmap was handed out and not shown yet. one that never makes it to a
+    // view is left to the GC.
+    private final WeakHashMap<Bitmap, Integer> mDelivering = new WeakHashMap<>();
+    // fallen out of the cache, but still on the screen
+    private final WeakHashMap<Bitmap, Boolean> mEvicted = new WeakHashMap<>();
+
+    public ThumbnailCache(int maxSize)
+    {
+        mMaxSize = maxSize;
+        mCache = new LruCache<String, Bitmap>(maxSize)
+        {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap)
+            {
+                return (int) BitmapPool.sizeOf(bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue)
+            {
+                if (oldValue != newValue)
+                    onRemoved(oldValue);
+            }
+        };
+    }
+
+    @Override
+    public Bitmap get(String key)
+    {
+        synchronized (this)
+        {
+            // under the lock, so it can't be pooled between the lookup and the pin
+            Bitmap bitmap = mCache.get(key);
+            if (bitmap != null)
+                pin(bitmap);
+            return bitmap;
+        }
+    }
+
+    @Override
+    public void set(String key, Bitmap bitmap)
+    {
+        synchronized (this)
+        {
+            pin(bitmap);
+            mEvicted.remove(bitmap);
+        }
+        mCache.put(key, bitmap);
+        synchronized (this)
+        {
+            mPool.trimTo(mMaxSize - mCache.size());
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        synchronized (this)
+        {
+            return mCache.size() + (int) mPool.size();
+        }
+    }
+
+    @Override
+    public int maxSize()
+    {
+        return mMaxSize;
+    }
+
+    @Override
+    public void clear()
+    {
+        mCache.evictAll();
+        synchronized (this)
+        {
+            mPool.clear();
+        }
+    }
+
+    /**
+     * @return a bitmap no longer used to decode a {@code width} x {@code height} image into,
+     *         or null if there isn't one.
+     */
+    public synchronized Bitmap getReusableBitmap(int width, int height)
+    {
+        return mPool.get(width, height);
+    }
+
+    /**
+     * give a bitmap nobody uses anymore to the pool, e.g. a temporary bitmap used for decoding.
+     */
+    public synchronized void putReusableBitmap(Bitmap bitmap)
+    {
+        recycle(bitmap);
+    }
+
+    /**
+     * a view showing the thumbnails from this cache replaced {@code oldDrawable} with
+     * {@code newDrawable}.
+     */
+    public void onDrawableChanged(Drawable oldDrawable, Drawable newDrawable)
+    {
+        Bitmap oldBitmap = getBitmap(oldDrawable);
+        Bitmap newBitmap = getBitmap(newDrawable);
+        if (oldBitmap == newBitmap)
+            return;
+
+        synchronized (this)
+        {
+            if (newBitmap != null)
+            {
+                Integer count = mDisplayCount.get(newBitmap);
+                mDisplayCount.put(newBitmap, count == null ? 1 : count + 1);
+                unpin(newBitmap);
+            }
+
+            if (oldBitmap != null)
+            {
+                Integer count = mDisplayCount.get(oldBitmap);
+                if (count == null || count <= 1)
+                {
+                    mDisplayCount.remove(oldBitmap);
+                    if (!mDelivering.containsKey(oldBitmap) && mEvicted.remove(oldBitmap) != null)
+                        recycle(oldBitmap);
+                }
+                else
+                    mDisplayCount.put(oldBitmap, count - 1);
+            }
+        }
+    }
+
+    private void pin(Bitmap bitmap)
+    {
+        Integer count = mDelivering.get(bitmap);
+        mDelivering.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private void unpin(Bitmap bitmap)
+    {
+        Integer count = mDelivering.get(bitmap);
+        if (count == null || count <= 1)
+            mDelivering.remove(bitmap);
+        else
+            mDelivering.put(bitmap, count - 1);
+    }
+
+    private synchronized void onRemoved(Bitmap bitmap)
+    {
+        if (mDisplayCount.containsKey(bitmap) || mDelivering.containsKey(bitmap))
+            mEvicted.put(bitmap, Boolean.TRUE);
+        else
+            recycle(bitmap);
+    }
+
+    private void recycle(Bitmap bitmap)
+    {
+        if (mPool.put(bitmap))
+            mPool.trimTo(mMaxSize - mCache.size());
+    }
+
+    private static Bitmap getBitmap(Drawable drawable)
+    {
+        // PicassoDrawable is a BitmapDrawable, too.
+        if (drawable instanceof BitmapDrawable)
+            return ((BitmapDrawable) drawable).getBitmap();
+        return null;
+    }
+}
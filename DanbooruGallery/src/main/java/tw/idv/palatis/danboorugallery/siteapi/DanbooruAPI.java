@@ -20,20 +20,19 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -61,7 +60,15 @@ public class DanbooruAPI
     // this is used to format the created attribute in XML
     // it is here because Android frees Locale.ENGLISH when formatter destroyed,
     // resulting reloading of locale data every time which is SLOW.
-    private static final DateFormat sDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZZ", Locale.ENGLISH);
+    // one per thread, hosts are fetched concurrently and SimpleDateFormat isn't thread-safe.
+    private static final ThreadLocal<DateFormat> sDateFormat = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZZ", Locale.ENGLISH);
+        }
+    };
 
     public static void init()
     {
@@ -98,10 +105,8 @@ public class DanbooruAPI
     // 1: url, 2: post_id
     private static final String URL_POST_WEB = "%1$s/posts/%2$s";
 
-    private static final int _BUFFER_SIZE = 8192;
-
     @Override
-    public List<Tag> searchTags(Host host, String pattern)
+    public List<Tag> searchTags(Host host, String pattern, CancellationSignal signal)
         throws SiteAPIException
     {
         if (pattern.length() == 0)
@@ -115,46 +120,68 @@ public class DanbooruAPI
             String url = String.format(URL_TAGS_FORMAT, host.url, URLEncoder.encode(pattern, "UTF-8"));
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
-
-            JSONArray json_tags = new JSONArray(output.toString());
-            int len = json_tags.length();
-            List<Tag> tags = new ArrayList<>(len);
-            for (int i = 0;i < len;++i)
-                tags.add(parseJSONObjectToTag(json_tags.getJSONObject(i)));
+            List<Tag> tags = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext())
+                tags.add(readTag(reader));
+            reader.endArray();
+            reader.close();
 
             return tags;
         }
-        catch (IOException | JSONException ex)
+        catch (IOException | IllegalStateException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    public Tag parseJSONObjectToTag(JSONObject json)
-        throws JSONException
+    private static Tag readTag(JsonReader reader)
+        throws IOException
     {
-        return new Tag(
-            json.getInt(DanbooruTag.KEY_TAG_ID),
-            json.getString(DanbooruTag.KEY_TAG_NAME),
-            json.getInt(DanbooruTag.KEY_TAG_POST_COUNT)
-        );
+        int id = -1, post_count = 0;
+        String name = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (key)
+            {
+                case DanbooruTag.KEY_TAG_ID: id = reader.nextInt(); break;
+                case DanbooruTag.KEY_TAG_NAME: name = reader.nextString(); break;
+                case DanbooruTag.KEY_TAG_POST_COUNT: post_count = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (name == null)
+            throw new MalformedJsonException("tag without a name.");
+
+        return new DanbooruTag(id, name, post_count);
     }
 
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags)
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal)
         throws SiteAPIException
     {
         HttpURLConnection connection = null;
@@ -166,84 +193,124 @@ public class DanbooruAPI
             String url = String.format(URL_POSTS_FORMAT, host.url, page, URLEncoder.encode(TextUtils.join(" ", tags), "UTF-8"), limit);
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
-
-            JSONArray json_posts = new JSONArray(output.toString());
-            int len = json_posts.length();
-            List<Post> posts = new ArrayList<>(len);
-            for (int j = 0;j < len; ++j)
+            // posts are built straight off the stream, the page is never held in memory as a whole.
+            List<Post> posts = new ArrayList<>(limit);
+            reader.beginArray();
+            while (reader.hasNext())
             {
-                try
-                {
-                    posts.add(parseJSONObjectToPost(host, json_posts.getJSONObject(j)));
-                }
-                catch (JSONException | ParseException ex)
-                {
-                    throw new SiteAPIException(this, connection, ex);
-                }
+                signal.throwIfCanceled();
+                Post post = readPost(host, reader);
+                if (post != null)
+                    posts.add(post);
             }
+            reader.endArray();
+            reader.close();
 
             return posts;
         }
-        catch (JSONException | IOException ex)
+        catch (ParseException | IOException | IllegalStateException | NumberFormatException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    public static Post parseJSONObjectToPost(Host host, JSONObject json)
-        throws JSONException, ParseException
+    private static Post readPost(Host host, JsonReader reader)
+        throws IOException, ParseException
     {
-        if (json == null)
-            return null;
+        int post_id = -1, image_width = 0, image_height = 0, file_size = 0;
+        int uploader_id = -1, score = 0, score_up = 0, score_down = 0;
+        String created_at = null, updated_at = null;
+        String file_url = "", file_url_large = "", file_url_preview = "";
+        String tag_string = "", rating = "", uploader_name = "", md5 = "", file_ext = "";
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (key)
+            {
+                case DanbooruPost.KEY_POST_ID: post_id = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_CREATED_AT: created_at = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_UPDATED_AT: updated_at = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_FILE_SIZE: file_size = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_IMAGE_WIDTH: image_width = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_IMAGE_HEIGHT: image_height = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_FILE_URL: file_url = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_LARGE_FILE_URL: file_url_large = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_PREVIEW_FILE_URL: file_url_preview = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_TAG_STRING: tag_string = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_RATING: rating = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_MD5: md5 = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_FILE_EXT: file_ext = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_UPLOADER_ID: uploader_id = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_UPLOADER_NAME: uploader_name = reader.nextString(); break;
+                case DanbooruPost.KEY_POST_SCORE: score = reader.nextInt(); break;
+                case DanbooruPost.KEY_POST_UP_SCORE: score_up = Math.abs(reader.nextInt()); break;
+                case DanbooruPost.KEY_POST_DOWN_SCORE: score_down = Math.abs(reader.nextInt()); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (post_id == -1 || created_at == null)
+            throw new MalformedJsonException("post without id or created_at.");
+        if (updated_at == null)
+            updated_at = created_at;
 
-        String file_url = json.getString(DanbooruPost.KEY_POST_FILE_URL);
-        String file_url_large = json.getString(DanbooruPost.KEY_POST_LARGE_FILE_URL);
-        String file_url_preview = json.getString(DanbooruPost.KEY_POST_PREVIEW_FILE_URL);
+        // restricted or deleted posts come without the files, there is nothing to show.
+        if (file_url.isEmpty())
+            return null;
         if (!file_url.startsWith("http"))
             file_url = host.url + file_url;
-        if (!file_url_large.startsWith("http"))
+        if (file_url_large.isEmpty())
+            file_url_large = file_url;
+        else if (!file_url_large.startsWith("http"))
             file_url_large = host.url + file_url_large;
-        if (!file_url_preview.startsWith("http"))
+        if (file_url_preview.isEmpty())
+            file_url_preview = file_url_large;
+        else if (!file_url_preview.startsWith("http"))
             file_url_preview = host.url + file_url_preview;
 
-        int uploader_id = -1;
-        String uploader_name = "";
-        try { uploader_id = json.getInt(DanbooruPost.KEY_POST_UPLOADER_ID); } catch (JSONException ignored) { }
-        try { uploader_name = json.getString(DanbooruPost.KEY_POST_UPLOADER_NAME); } catch (JSONException ignored) { }
-
+        DateFormat dateFormat = sDateFormat.get();
         return new DanbooruPost(
             host,
-            json.getInt(DanbooruPost.KEY_POST_ID),
-            json.getInt(DanbooruPost.KEY_POST_IMAGE_WIDTH),
-            json.getInt(DanbooruPost.KEY_POST_IMAGE_HEIGHT),
-            sDateFormat.parse(json.getString(DanbooruPost.KEY_POST_CREATED_AT)),
-            sDateFormat.parse(json.getString(DanbooruPost.KEY_POST_UPDATED_AT)),
-            json.getInt(DanbooruPost.KEY_POST_FILE_SIZE),
+            post_id,
+            image_width,
+            image_height,
+            dateFormat.parse(created_at),
+            dateFormat.parse(updated_at),
+            file_size,
             file_url,
             file_url_large,
             file_url_preview,
-            TextUtils.split(json.getString(DanbooruPost.KEY_POST_TAG_STRING), " "),
-            json.getString(DanbooruPost.KEY_POST_RATING),
+            TextUtils.split(tag_string, " "),
+            rating,
             uploader_id,
             uploader_name,
-            json.getString(DanbooruPost.KEY_POST_MD5),
-            json.getString(DanbooruPost.KEY_POST_FILE_EXT),
-            json.getInt(DanbooruPost.KEY_POST_SCORE),
-            Math.abs(json.getInt(DanbooruPost.KEY_POST_UP_SCORE)),
-            Math.abs(json.getInt(DanbooruPost.KEY_POST_DOWN_SCORE))
+            md5,
+            file_ext,
+            score,
+            score_up,
+            score_down
         );
     }
 
@@ -362,6 +429,12 @@ public class DanbooruAPI
             catch (JSONException ignored) { }
         }
 
+        @Override
+        public String getMd5()
+        {
+            return md5;
+        }
+
         @Override
         public String getReferer()
         {
@@ -20,24 +20,22 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -95,10 +93,8 @@ public class DanbooruLegacyAPI
     // 1: url, 2: post_id
     private static final String URL_POST_WEB = "%1$s/post/show/%2$d";
 
-    private static final int _BUFFER_SIZE = 8192;
-
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags)
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal)
         throws SiteAPIException
     {
         HttpURLConnection connection = null;
@@ -110,45 +106,42 @@ public class DanbooruLegacyAPI
             String url = String.format(URL_POSTS_FORMAT, host.url, page, URLEncoder.encode(TextUtils.join(" ", tags), "UTF-8"), limit);
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
-
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            JSONArray json_posts = new JSONArray(output.toString());
-            int len = json_posts.length();
-            List<Post> posts = new ArrayList<>(len);
-            for (int j = 0;j < len; ++j)
+            // posts are built straight off the stream, the page is never held in memory as a whole.
+            List<Post> posts = new ArrayList<>(limit);
+            reader.beginArray();
+            while (reader.hasNext())
             {
-                try
-                {
-                    posts.add(parseJSONObjectToPost(host, json_posts.getJSONObject(j)));
-                }
-                catch (JSONException | ParseException ex)
-                {
-                    throw new SiteAPIException(this, connection, ex);
-                }
+                signal.throwIfCanceled();
+                Post post = readPost(host, reader);
+                if (post != null)
+                    posts.add(post);
             }
+            reader.endArray();
+            reader.close();
 
             return posts;
         }
-        catch (JSONException | IOException ex)
+        catch (IOException | IllegalStateException | NumberFormatException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
     @Override
-    public List<Tag> searchTags(Host host, String pattern)
+    public List<Tag> searchTags(Host host, String pattern, CancellationSignal signal)
         throws SiteAPIException
     {
         if (pattern.length() == 0)
@@ -162,41 +155,64 @@ public class DanbooruLegacyAPI
             String url = String.format(URL_TAGS_FORMAT, host.url, URLEncoder.encode(pattern, "UTF-8"));
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
-
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            JSONArray json_tags = new JSONArray(output.toString());
-            int len = json_tags.length();
-            List<Tag> tags = new ArrayList<>(len);
-            for (int i = 0;i < len;++i)
-                tags.add(parseJSONObjectToTag(json_tags.getJSONObject(i)));
+            List<Tag> tags = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext())
+                tags.add(readTag(reader));
+            reader.endArray();
+            reader.close();
 
             return tags;
         }
-        catch (JSONException | IOException ex)
+        catch (IOException | IllegalStateException | NumberFormatException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    public Tag parseJSONObjectToTag(JSONObject json) throws JSONException
+    private static Tag readTag(JsonReader reader)
+        throws IOException
     {
-        return new DanbooruLegacyTag(
-            json.getInt(DanbooruLegacyTag.KEY_TAG_ID),
-            json.getString(DanbooruLegacyTag.KEY_TAG_NAME),
-            json.getInt(DanbooruLegacyTag.KEY_TAG_POST_COUNT)
-        );
+        int id = -1, post_count = 0;
+        String name = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (key)
+            {
+                case DanbooruLegacyTag.KEY_TAG_ID: id = reader.nextInt(); break;
+                case DanbooruLegacyTag.KEY_TAG_NAME: name = reader.nextString(); break;
+                case DanbooruLegacyTag.KEY_TAG_POST_COUNT: post_count = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (name == null)
+            throw new MalformedJsonException("tag without a name.");
+
+        return new DanbooruLegacyTag(id, name, post_count);
     }
 
     @Override
@@ -229,50 +245,102 @@ public class DanbooruLegacyAPI
         );
     }
 
-    public static Post parseJSONObjectToPost(Host host, JSONObject json)
-        throws JSONException, ParseException
+    private static Post readPost(Host host, JsonReader reader)
+        throws IOException
     {
-        if (json == null)
-            return null;
+        int post_id = -1, image_width = 0, image_height = 0, file_size = 0;
+        int uploader_id = -1, score = 0;
+        Date created_at = null;
+        String file_url = "", file_url_large = "", file_url_preview = "";
+        String tag_string = "", rating = "", uploader_name = "", md5 = "";
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
 
-        String file_url = json.getString(DanbooruLegacyPost.KEY_POST_FILE_URL);
-        String file_url_large = json.getString(DanbooruLegacyPost.KEY_POST_LARGE_FILE_URL);
-        String file_url_preview = json.getString(DanbooruLegacyPost.KEY_POST_PREVIEW_FILE_URL);
+            switch (key)
+            {
+                case DanbooruLegacyPost.KEY_POST_ID: post_id = reader.nextInt(); break;
+                case DanbooruLegacyPost.KEY_POST_CREATED_AT: created_at = readTime(reader); break;
+                case DanbooruLegacyPost.KEY_POST_FILE_SIZE: file_size = reader.nextInt(); break;
+                case DanbooruLegacyPost.KEY_POST_IMAGE_WIDTH: image_width = reader.nextInt(); break;
+                case DanbooruLegacyPost.KEY_POST_IMAGE_HEIGHT: image_height = reader.nextInt(); break;
+                case DanbooruLegacyPost.KEY_POST_FILE_URL: file_url = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_LARGE_FILE_URL: file_url_large = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_PREVIEW_FILE_URL: file_url_preview = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_TAG_STRING: tag_string = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_RATING: rating = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_MD5: md5 = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_UPLOADER_ID: uploader_id = reader.nextInt(); break;
+                case DanbooruLegacyPost.KEY_POST_UPLOADER_NAME: uploader_name = reader.nextString(); break;
+                case DanbooruLegacyPost.KEY_POST_SCORE: score = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (post_id == -1 || created_at == null)
+            throw new MalformedJsonException("post without id or created_at.");
+
+        // restricted or deleted posts come without the files, there is nothing to show.
+        if (file_url.isEmpty())
+            return null;
         if (!file_url.startsWith("http"))
             file_url = host.url + file_url;
-        if (!file_url_large.startsWith("http"))
+        if (file_url_large.isEmpty())
+            file_url_large = file_url;
+        else if (!file_url_large.startsWith("http"))
             file_url_large = host.url + file_url_large;
-        if (!file_url_preview.startsWith("http"))
+        if (file_url_preview.isEmpty())
+            file_url_preview = file_url_large;
+        else if (!file_url_preview.startsWith("http"))
             file_url_preview = host.url + file_url_preview;
 
-        JSONObject json_date = json.getJSONObject(DanbooruLegacyPost.KEY_POST_CREATED_AT);
-        Date date = new Date(json_date.getLong("s") * 1000 + json_date.getLong("n") / 1000000);
-
-        int uploader_id = -1;
-        String uploader_name = "";
-        try { uploader_id = json.getInt(DanbooruLegacyPost.KEY_POST_UPLOADER_ID); } catch (JSONException ignored) { }
-        try { uploader_name = json.getString(DanbooruLegacyPost.KEY_POST_UPLOADER_NAME); } catch (JSONException ignored) { }
-
         return new DanbooruLegacyPost(
             host,
-            json.getInt(DanbooruLegacyPost.KEY_POST_ID),
-            json.getInt(DanbooruLegacyPost.KEY_POST_IMAGE_WIDTH),
-            json.getInt(DanbooruLegacyPost.KEY_POST_IMAGE_HEIGHT),
-            date,
-            date,
-            json.getInt(DanbooruLegacyPost.KEY_POST_FILE_SIZE),
+            post_id,
+            image_width,
+            image_height,
+            created_at,
+            created_at,
+            file_size,
             file_url,
             file_url_large,
             file_url_preview,
-            TextUtils.split(json.getString(DanbooruLegacyPost.KEY_POST_TAG_STRING), " "),
-            json.getString(DanbooruLegacyPost.KEY_POST_RATING),
+            TextUtils.split(tag_string, " "),
+            rating,
             uploader_id,
             uploader_name,
-            json.getString(DanbooruLegacyPost.KEY_POST_MD5),
-            json.getInt(DanbooruLegacyPost.KEY_POST_SCORE)
+            md5,
+            score
         );
     }
 
+    // "created_at":{"json_class":"Time","n":197131000,"s":1390583690}
+    private static Date readTime(JsonReader reader)
+        throws IOException
+    {
+        long s = 0, n = 0;
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            switch (reader.nextName())
+            {
+                case "s": s = reader.nextLong(); break;
+                case "n": n = reader.nextLong(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Date(s * 1000 + n / 1000000);
+    }
+
     private static class DanbooruLegacyTag extends Tag
     {
         public static final String KEY_TAG_ID = "id";                   // "id":11582,
@@ -355,6 +423,12 @@ public class DanbooruLegacyAPI
             catch (JSONException ignored) { }
         }
 
+        @Override
+        public String getMd5()
+        {
+            return md5;
+        }
+
         @Override
         public String getReferer()
         {
@@ -20,6 +20,7 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 
 import java.util.Collections;
 import java.util.Date;
@@ -63,13 +64,13 @@ class DummyAPI
     }
 
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags)
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal)
     {
         return Collections.emptyList();
     }
 
     @Override
-    public List<Tag> searchTags(Host host, String match_pattern)
+    public List<Tag> searchTags(Host host, String match_pattern, CancellationSignal signal)
     {
         return Collections.emptyList();
     }
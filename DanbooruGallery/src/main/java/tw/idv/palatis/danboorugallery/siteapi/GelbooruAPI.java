@@ -20,16 +20,14 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -43,10 +41,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import tw.idv.palatis.danboorugallery.DanbooruGallerySettings;
 import tw.idv.palatis.danboorugallery.R;
 import tw.idv.palatis.danboorugallery.database.PostTagsView;
@@ -95,7 +89,7 @@ public class GelbooruAPI
     private static final String URL_POST_WEB = "%1$s/index.php?page=post&s=view&id=%2$s";
 
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags)
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal)
         throws SiteAPIException
     {
         HttpURLConnection connection = null;
@@ -107,29 +101,33 @@ public class GelbooruAPI
             String url = String.format(URL_POSTS_FORMAT, host.url, page, URLEncoder.encode(TextUtils.join(" ", tags), "UTF-8"), limit);
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(new InputSource(connection.getInputStream()));
-            doc.getDocumentElement().normalize();
-
-            NodeList nodes = doc.getElementsByTagName( "post" );
+            // posts are emitted as soon as their attributes are read, no DOM is built.
+            XmlPullParser parser = obtainXmlPullParser(connection.getInputStream());
+            List<Post> posts = new ArrayList<>(limit);
+            for (int event = parser.getEventType();event != XmlPullParser.END_DOCUMENT;event = parser.next())
+            {
+                if (event != XmlPullParser.START_TAG || !"post".equals(parser.getName()))
+                    continue;
 
-            int length = nodes.getLength();
-            List<Post> posts = new ArrayList<>(length);
-            for (int j = 0; j < length; ++j)
-                posts.add(parseXMLElementToPost(host, (Element)nodes.item(j)));
+                signal.throwIfCanceled();
+                posts.add(readPost(host, parser));
+            }
 
             return posts;
         }
-        catch (ParserConfigurationException | SAXException | IOException ex)
+        catch (XmlPullParserException | IOException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
@@ -138,16 +136,21 @@ public class GelbooruAPI
     // this is used to format the created_at attribute in XML
     // it is here because Android frees Locale.ENGLISH when sDateFormat destroyed,
     // resulting reloading of locale data every time which is SLOW.
-    static private DateFormat sDateFormat = new SimpleDateFormat( "EEE MMM dd HH:mm:ss Z yyyy", Locale.ENGLISH );
-
-    private Post parseXMLElementToPost(Host host, Element item)
+    // one per thread, hosts are fetched concurrently and SimpleDateFormat isn't thread-safe.
+    static private final ThreadLocal<DateFormat> sDateFormat = new ThreadLocal<DateFormat>()
     {
-        if (item == null)
-            return null;
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat( "EEE MMM dd HH:mm:ss Z yyyy", Locale.ENGLISH );
+        }
+    };
 
-        String file_url = item.getAttribute(GelbooruPost.KEY_POST_FILE_URL);
-        String file_url_large = item.getAttribute(GelbooruPost.KEY_POST_LARGE_FILE_URL);
-        String file_url_preview = item.getAttribute(GelbooruPost.KEY_POST_PREVIEW_FILE_URL);
+    private static Post readPost(Host host, XmlPullParser item)
+    {
+        String file_url = getAttribute(item, GelbooruPost.KEY_POST_FILE_URL);
+        String file_url_large = getAttribute(item, GelbooruPost.KEY_POST_LARGE_FILE_URL);
+        String file_url_preview = getAttribute(item, GelbooruPost.KEY_POST_PREVIEW_FILE_URL);
         if (!file_url.startsWith("http"))
             file_url = host.url + file_url;
         if (!file_url_large.startsWith("http"))
@@ -158,7 +161,7 @@ public class GelbooruAPI
         Date date;
         try
         {
-            date = sDateFormat.parse(item.getAttribute(GelbooruPost.KEY_POST_CREATED_AT));
+            date = sDateFormat.get().parse(getAttribute(item, GelbooruPost.KEY_POST_CREATED_AT));
         }
         catch (ParseException e)
         {
@@ -167,25 +170,25 @@ public class GelbooruAPI
 
         return new GelbooruPost(
             host,
-            ParseUtils.parseInt(item.getAttribute(GelbooruPost.KEY_POST_ID)),
-            ParseUtils.parseInt(item.getAttribute(GelbooruPost.KEY_POST_IMAGE_WIDTH), -1),
-            ParseUtils.parseInt(item.getAttribute(GelbooruPost.KEY_POST_IMAGE_HEIGHT), -1),
+            ParseUtils.parseInt(getAttribute(item, GelbooruPost.KEY_POST_ID)),
+            ParseUtils.parseInt(getAttribute(item, GelbooruPost.KEY_POST_IMAGE_WIDTH), -1),
+            ParseUtils.parseInt(getAttribute(item, GelbooruPost.KEY_POST_IMAGE_HEIGHT), -1),
             date,
             date,
             0, // no file size
             file_url,
             file_url_large,
             file_url_preview,
-            TextUtils.split(item.getAttribute(GelbooruPost.KEY_POST_TAG_STRING).trim(), " "),
-            item.getAttribute(GelbooruPost.KEY_POST_RATING),
-            item.getAttribute(GelbooruPost.KEY_POST_MD5),
-            ParseUtils.parseInt(item.getAttribute(GelbooruPost.KEY_POST_UPLOADER_ID)),
-            ParseUtils.parseInt(item.getAttribute(GelbooruPost.KEY_POST_SCORE))
+            TextUtils.split(getAttribute(item, GelbooruPost.KEY_POST_TAG_STRING).trim(), " "),
+            getAttribute(item, GelbooruPost.KEY_POST_RATING),
+            getAttribute(item, GelbooruPost.KEY_POST_MD5),
+            ParseUtils.parseInt(getAttribute(item, GelbooruPost.KEY_POST_UPLOADER_ID)),
+            ParseUtils.parseInt(getAttribute(item, GelbooruPost.KEY_POST_SCORE))
         );
     }
 
     @Override
-    public List<Tag> searchTags(Host host, String pattern)
+    public List<Tag> searchTags(Host host, String pattern, CancellationSignal signal)
         throws SiteAPIException
     {
         HttpURLConnection connection = null;
@@ -196,55 +199,52 @@ public class GelbooruAPI
             String url = String.format(URL_TAGS_FORMAT, host.url, URLEncoder.encode(pattern, "UTF-8"));
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(new InputSource(connection.getInputStream()));
-            doc.getDocumentElement().normalize();
-
-            NodeList nodes = doc.getElementsByTagName( "tag" );
-
-            int len = nodes.getLength();
-            List<Tag> tags = new ArrayList<>(len);
-            for (int j = 0; j < len; ++j)
+            XmlPullParser parser = obtainXmlPullParser(connection.getInputStream());
+            List<Tag> tags = new ArrayList<>();
+            for (int event = parser.getEventType();event != XmlPullParser.END_DOCUMENT;event = parser.next())
             {
-                Tag tag = parseXMLElementToTag((Element) nodes.item(j));
+                if (event != XmlPullParser.START_TAG || !"tag".equals(parser.getName()))
+                    continue;
+
+                Tag tag = readTag(parser);
                 if (tag != null)
                     tags.add(tag);
             }
 
             return tags;
         }
-        catch (ParserConfigurationException | SAXException | IOException ex)
+        catch (XmlPullParserException | IOException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    private GelbooruTag parseXMLElementToTag(Element item)
+    private static GelbooruTag readTag(XmlPullParser item)
     {
-        if (item == null)
-            return null;
-
         int post_count = 0;
         try
         {
-            post_count = Integer.parseInt(item.getAttribute(GelbooruTag.KEY_TAG_POST_COUNT));
+            post_count = Integer.parseInt(getAttribute(item, GelbooruTag.KEY_TAG_POST_COUNT));
         }
         catch (NumberFormatException ignored) { }
 
         try
         {
             return new GelbooruTag(
-                Integer.parseInt(item.getAttribute(GelbooruTag.KEY_TAG_ID)),
-                item.getAttribute(GelbooruTag.KEY_TAG_NAME),
+                Integer.parseInt(getAttribute(item, GelbooruTag.KEY_TAG_ID)),
+                getAttribute(item, GelbooruTag.KEY_TAG_NAME),
                 post_count
             );
         }
@@ -363,6 +363,12 @@ public class GelbooruAPI
             catch (JSONException ignored) { }
         }
 
+        @Override
+        public String getMd5()
+        {
+            return md5;
+        }
+
         @Override
         public String getReferer()
         {
@@ -20,24 +20,22 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -90,10 +88,8 @@ public class MoebooruAPI
     // 1: url, 2: post_id
     private static final String URL_POST_WEB = "%1$s/post/show/%2$d";
 
-    private static final int _BUFFER_SIZE = 8192;
-
     @Override
-    public List<Tag> searchTags(Host host, String pattern)
+    public List<Tag> searchTags(Host host, String pattern, CancellationSignal signal)
         throws SiteAPIException
     {
         if (pattern.length() == 0)
@@ -107,45 +103,68 @@ public class MoebooruAPI
             String url = String.format(URL_TAGS_FORMAT, host.url, URLEncoder.encode(pattern, "UTF-8"));
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
-
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            JSONArray json_tags = new JSONArray(output.toString());
-            int len = json_tags.length();
-            List<Tag> tags = new ArrayList<>(len);
-            for (int i = 0;i < len;++i)
-                tags.add(parseJSONObjectToTag(json_tags.getJSONObject(i)));
+            List<Tag> tags = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext())
+                tags.add(readTag(reader));
+            reader.endArray();
+            reader.close();
 
             return tags;
         }
-        catch (JSONException | IOException ex)
+        catch (IOException | IllegalStateException | NumberFormatException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    public Tag parseJSONObjectToTag(JSONObject json) throws JSONException
+    private static Tag readTag(JsonReader reader)
+        throws IOException
     {
-        return new Tag(
-            json.getInt(MoebooruTag.KEY_TAG_ID),
-            json.getString(MoebooruTag.KEY_TAG_NAME),
-            json.getInt(MoebooruTag.KEY_TAG_POST_COUNT)
-        );
+        int id = -1, post_count = 0;
+        String name = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (key)
+            {
+                case MoebooruTag.KEY_TAG_ID: id = reader.nextInt(); break;
+                case MoebooruTag.KEY_TAG_NAME: name = reader.nextString(); break;
+                case MoebooruTag.KEY_TAG_POST_COUNT: post_count = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (name == null)
+            throw new MalformedJsonException("tag without a name.");
+
+        return new MoebooruTag(id, name, post_count);
     }
 
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags)
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal)
         throws SiteAPIException
     {
         HttpURLConnection connection = null;
@@ -157,82 +176,114 @@ public class MoebooruAPI
             String url = String.format(URL_POSTS_FORMAT, host.url, page, URLEncoder.encode(TextUtils.join(" ", tags), "UTF-8"), limit);
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
-            Reader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-            Writer output = new StringWriter();
-
-            char buffer[] = new char[_BUFFER_SIZE];
-            for (int count = input.read(buffer);count > 0;count = input.read(buffer))
-                output.write(buffer, 0, count);
+            JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
 
-            JSONArray json_posts = new JSONArray(output.toString());
-            int len = json_posts.length();
-            List<Post> posts = new ArrayList<>(len);
-            for (int j = 0;j < len; ++j)
+            // posts are built straight off the stream, the page is never held in memory as a whole.
+            List<Post> posts = new ArrayList<>(limit);
+            reader.beginArray();
+            while (reader.hasNext())
             {
-                try
-                {
-                    posts.add(parseJSONObjectToPost(host, json_posts.getJSONObject(j)));
-                }
-                catch (JSONException | ParseException ex)
-                {
-                    throw new SiteAPIException(this, connection, ex);
-                }
+                signal.throwIfCanceled();
+                Post post = readPost(host, reader);
+                if (post != null)
+                    posts.add(post);
             }
+            reader.endArray();
+            reader.close();
 
             return posts;
         }
-        catch (IOException | JSONException ex)
+        catch (IOException | IllegalStateException | NumberFormatException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
-    public static Post parseJSONObjectToPost(Host host, JSONObject json)
-        throws JSONException, ParseException
+    private static Post readPost(Host host, JsonReader reader)
+        throws IOException
     {
-        if (json == null)
-            return null;
+        int post_id = -1, image_width = 0, image_height = 0, file_size = 0;
+        int uploader_id = -1, score = 0;
+        Date created_at = null;
+        String file_url = "", file_url_large = "", file_url_preview = "";
+        String tag_string = "", rating = "", uploader_name = "", md5 = "";
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (key)
+            {
+                case MoebooruPost.KEY_POST_ID: post_id = reader.nextInt(); break;
+                case MoebooruPost.KEY_POST_CREATED_AT: created_at = new Date(reader.nextLong() * 1000); break;
+                case MoebooruPost.KEY_POST_FILE_SIZE: file_size = reader.nextInt(); break;
+                case MoebooruPost.KEY_POST_IMAGE_WIDTH: image_width = reader.nextInt(); break;
+                case MoebooruPost.KEY_POST_IMAGE_HEIGHT: image_height = reader.nextInt(); break;
+                case MoebooruPost.KEY_POST_FILE_URL: file_url = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_LARGE_FILE_URL: file_url_large = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_PREVIEW_FILE_URL: file_url_preview = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_TAG_STRING: tag_string = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_RATING: rating = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_MD5: md5 = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_UPLOADER_ID: uploader_id = reader.nextInt(); break;
+                case MoebooruPost.KEY_POST_UPLOADER_NAME: uploader_name = reader.nextString(); break;
+                case MoebooruPost.KEY_POST_SCORE: score = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        String file_url = json.getString(MoebooruPost.KEY_POST_FILE_URL);
-        String file_url_large = json.getString(MoebooruPost.KEY_POST_LARGE_FILE_URL);
-        String file_url_preview = json.getString(MoebooruPost.KEY_POST_PREVIEW_FILE_URL);
+        if (post_id == -1 || created_at == null)
+            throw new MalformedJsonException("post without id or created_at.");
+
+        // restricted or deleted posts come without the files, there is nothing to show.
+        if (file_url.isEmpty())
+            return null;
         if (!file_url.startsWith("http"))
             file_url = host.url + file_url;
-        if (!file_url_large.startsWith("http"))
+        if (file_url_large.isEmpty())
+            file_url_large = file_url;
+        else if (!file_url_large.startsWith("http"))
             file_url_large = host.url + file_url_large;
-        if (!file_url_preview.startsWith("http"))
+        if (file_url_preview.isEmpty())
+            file_url_preview = file_url_large;
+        else if (!file_url_preview.startsWith("http"))
             file_url_preview = host.url + file_url_preview;
 
-        int uploader_id = -1;
-        String uploader_name = "";
-        try { uploader_id = json.getInt(MoebooruPost.KEY_POST_UPLOADER_ID); } catch (JSONException ignored) { }
-        try { uploader_name = json.getString(MoebooruPost.KEY_POST_UPLOADER_NAME); } catch (JSONException ignored) { }
-
-        Date date = new Date(json.getLong(MoebooruPost.KEY_POST_CREATED_AT) * 1000);
         return new MoebooruPost(
             host,
-            json.getInt(MoebooruPost.KEY_POST_ID),
-            json.getInt(MoebooruPost.KEY_POST_IMAGE_WIDTH),
-            json.getInt(MoebooruPost.KEY_POST_IMAGE_HEIGHT),
-            date,
-            date,
-            json.getInt(MoebooruPost.KEY_POST_FILE_SIZE),
+            post_id,
+            image_width,
+            image_height,
+            created_at,
+            created_at,
+            file_size,
             file_url,
             file_url_large,
             file_url_preview,
-            TextUtils.split(json.getString(MoebooruPost.KEY_POST_TAG_STRING), " "),
-            json.getString(MoebooruPost.KEY_POST_RATING),
+            TextUtils.split(tag_string, " "),
+            rating,
             uploader_id,
             uploader_name,
-            json.getString(MoebooruPost.KEY_POST_MD5),
-            json.getInt(MoebooruPost.KEY_POST_SCORE)
+            md5,
+            score
         );
     }
 
@@ -349,6 +400,12 @@ public class MoebooruAPI
             catch (JSONException ignored) { }
         }
 
+        @Override
+        public String getMd5()
+        {
+            return md5;
+        }
+
         @Override
         public String getReferer()
         {
@@ -20,16 +20,14 @@ package tw.idv.palatis.danboorugallery.siteapi;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -43,10 +41,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import tw.idv.palatis.danboorugallery.DanbooruGallerySettings;
 import tw.idv.palatis.danboorugallery.R;
 import tw.idv.palatis.danboorugallery.database.PostTagsView;
@@ -67,7 +61,15 @@ public class ShimmieAPI
     // this is used to format the created attribute in XML
     // it is here because Android frees Locale.ENGLISH when formatter destroyed,
     // resulting reloading of locale data every time which is SLOW.
-    private static final DateFormat sDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
+    // one per thread, hosts are fetched concurrently and SimpleDateFormat isn't thread-safe.
+    private static final ThreadLocal<DateFormat> sDateFormat = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
+        }
+    };
 
     @Override
     public int getApiId()
@@ -102,7 +104,7 @@ public class ShimmieAPI
     private static final String URL_POST_WEB = "%1$s/post/view/%2$s";
 
     @Override
-    public List<Post> fetchPosts(Host host, int startFrom, String[] tags) throws SiteAPIException
+    public List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal) throws SiteAPIException
     {
         HttpURLConnection connection = null;
         try
@@ -117,49 +119,50 @@ public class ShimmieAPI
             String url = String.format(URL_POSTS_FORMAT, host.url, page, strtags, limit);
             Log.v(TAG, String.format("URL: %s", url));
             connection = SiteAPI.openConnection(new URL(url));
+            disconnectOnCancel(signal, connection);
             if (!host.getLogin().isEmpty())
                 connection.setRequestProperty("Authorization", "Basic " + host.getSecret());
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(new InputSource(connection.getInputStream()));
-            doc.getDocumentElement().normalize();
-
-            NodeList nodes = doc.getElementsByTagName( "post" );
+            // posts are emitted as soon as their attributes are read, no DOM is built.
+            XmlPullParser parser = obtainXmlPullParser(connection.getInputStream());
+            List<Post> posts = new ArrayList<>(limit);
+            for (int event = parser.getEventType();event != XmlPullParser.END_DOCUMENT;event = parser.next())
+            {
+                if (event != XmlPullParser.START_TAG || !"post".equals(parser.getName()))
+                    continue;
 
-            int length = nodes.getLength();
-            List<Post> posts = new ArrayList<>(length);
-            for (int j = 0; j < length; ++j)
-                posts.add(parseXMLElementToPost(host, (Element)nodes.item(j)));
+                signal.throwIfCanceled();
+                posts.add(readPost(host, parser));
+            }
 
             return posts;
         }
-        catch (ParserConfigurationException | SAXException | IOException ex)
+        catch (XmlPullParserException | IOException ex)
         {
+            // aborted on purpose, not an error.
+            signal.throwIfCanceled();
             throw new SiteAPIException(this, connection, ex);
         }
         finally
         {
+            signal.setOnCancelListener(null);
             if (connection != null)
                 connection.disconnect();
         }
     }
 
     @Override
-    public List<Tag> searchTags(Host host, String match_pattern) throws SiteAPIException
+    public List<Tag> searchTags(Host host, String match_pattern, CancellationSignal signal) throws SiteAPIException
     {
         List<Tag> fakeTags = new ArrayList<>(1);
         fakeTags.add(new ShimmieTag(-1, "Tag search for Shimmie isn't working.", -1));
         return fakeTags;
     }
 
-    private Post parseXMLElementToPost(Host host, Element item)
+    private static Post readPost(Host host, XmlPullParser item)
     {
-        if (item == null)
-            return null;
-
-        String file_url = item.getAttribute(ShimmiePost.KEY_POST_FILE_URL);
-        String file_url_preview = item.getAttribute(ShimmiePost.KEY_POST_PREVIEW_FILE_URL);
+        String file_url = getAttribute(item, ShimmiePost.KEY_POST_FILE_URL);
+        String file_url_preview = getAttribute(item, ShimmiePost.KEY_POST_PREVIEW_FILE_URL);
         if (!file_url.startsWith("http"))
             file_url = host.url + file_url;
         if (!file_url_preview.startsWith("http"))
@@ -168,7 +171,7 @@ public class ShimmieAPI
         Date date;
         try
         {
-            date = sDateFormat.parse(item.getAttribute(ShimmiePost.KEY_POST_CREATED_AT));
+            date = sDateFormat.get().parse(getAttribute(item, ShimmiePost.KEY_POST_CREATED_AT));
         }
         catch (ParseException e)
         {
@@ -177,20 +180,20 @@ public class ShimmieAPI
 
         return new ShimmiePost(
             host,
-            ParseUtils.parseInt(item.getAttribute(ShimmiePost.KEY_POST_ID)),
-            ParseUtils.parseInt(item.getAttribute(ShimmiePost.KEY_POST_IMAGE_WIDTH), -1),
-            ParseUtils.parseInt(item.getAttribute(ShimmiePost.KEY_POST_IMAGE_HEIGHT), -1),
+            ParseUtils.parseInt(getAttribute(item, ShimmiePost.KEY_POST_ID)),
+            ParseUtils.parseInt(getAttribute(item, ShimmiePost.KEY_POST_IMAGE_WIDTH), -1),
+            ParseUtils.parseInt(getAttribute(item, ShimmiePost.KEY_POST_IMAGE_HEIGHT), -1),
             date,
             date,
             -1, // no file size
             file_url,
             file_url,
             file_url_preview,
-            TextUtils.split(item.getAttribute(ShimmiePost.KEY_POST_TAG_STRING).trim(), " "),
-            "e", // item.getAttribute(ShimmiePost.KEY_POST_RATING), // rating always "u"... we don't recognize that.
-            item.getAttribute(ShimmiePost.KEY_POST_MD5),
-            item.getAttribute(ShimmiePost.KEY_POST_UPLOADER_NAME),
-            ParseUtils.parseInt(item.getAttribute(ShimmiePost.KEY_POST_SCORE))
+            TextUtils.split(getAttribute(item, ShimmiePost.KEY_POST_TAG_STRING).trim(), " "),
+            "e", // getAttribute(item, ShimmiePost.KEY_POST_RATING), // rating always "u"... we don't recognize that.
+            getAttribute(item, ShimmiePost.KEY_POST_MD5),
+            getAttribute(item, ShimmiePost.KEY_POST_UPLOADER_NAME),
+            ParseUtils.parseInt(getAttribute(item, ShimmiePost.KEY_POST_SCORE))
         );
     }
 
@@ -296,6 +299,12 @@ public class ShimmieAPI
             catch (JSONException ignored) { }
         }
 
+        @Override
+        public String getMd5()
+        {
+            return md5;
+        }
+
         @Override
         public String getReferer()
         {
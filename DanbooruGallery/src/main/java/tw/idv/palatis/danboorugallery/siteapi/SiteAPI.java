@@ -22,9 +22,11 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.DataSetObserver;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.Xml;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ListAdapter;
@@ -32,12 +34,18 @@ import android.widget.SpinnerAdapter;
 
 import com.squareup.okhttp.OkHttpClient;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import java.io.File;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.net.ssl.SSLContext;
 
@@ -78,17 +86,21 @@ public abstract class SiteAPI
      * @param host         the host
      * @param startFrom    the number of post to skip
      * @param tags         filtered tags
+     * @param signal       cancel the request, the implementation should abort the connection
+     *                     and throw {@link android.os.OperationCanceledException} when canceled.
      * @return             a list of posts
      */
-    public abstract List<Post> fetchPosts(Host host, int startFrom, String[] tags) throws SiteAPIException;
+    public abstract List<Post> fetchPosts(Host host, int startFrom, String[] tags, CancellationSignal signal) throws SiteAPIException;
 
     /**
      * search for tags
      * @param host             the host
      * @param match_pattern    the match pattern
+     * @param signal           cancel the request, the implementation should abort the connection
+     *                         and throw {@link android.os.OperationCanceledException} when canceled.
      * @return                 a list of tags
      */
-    public abstract List<Tag> searchTags(Host host, String match_pattern) throws SiteAPIException;
+    public abstract List<Tag> searchTags(Host host, String match_pattern, CancellationSignal signal) throws SiteAPIException;
 
     /**
      * Construct a post from cursors, because only the underlying API knows how to construct
@@ -157,6 +169,71 @@ public abstract class SiteAPI
         return connection;
     }
 
+    // cancel() calls the listener on its own thread, often the UI thread, closing a socket
+    // (and saying goodbye to SSL) doesn't belong there.
+    private static final ExecutorService sDisconnectExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Abort the {@code connection} as soon as {@code signal} is canceled.
+     * The connection is closed on a background thread, whichever thread cancels.
+     * Call {@code signal.setOnCancelListener(null)} when done with the connection.
+     * @param signal        the cancellation signal
+     * @param connection    the connection to be aborted
+     */
+    protected static void disconnectOnCancel(CancellationSignal signal, final HttpURLConnection connection)
+    {
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener()
+        {
+            @Override
+            public void onCancel()
+            {
+                sDisconnectExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        connection.disconnect();
+                    }
+                });
+            }
+        });
+    }
+
+    // the pull parsers are reused by each thread, creating one isn't cheap.
+    private static final ThreadLocal<XmlPullParser> sXmlPullParser = new ThreadLocal<XmlPullParser>()
+    {
+        @Override
+        protected XmlPullParser initialValue()
+        {
+            return Xml.newPullParser();
+        }
+    };
+
+    /**
+     * Get the {@link XmlPullParser} of the calling thread, set to read from {@code input}.
+     * @param input    the input stream
+     * @return         the parser
+     */
+    protected static XmlPullParser obtainXmlPullParser(InputStream input)
+        throws XmlPullParserException
+    {
+        XmlPullParser parser = sXmlPullParser.get();
+        parser.setInput(input, null);
+        return parser;
+    }
+
+    /**
+     * Get the attribute of the current tag, like {@link org.w3c.dom.Element#getAttribute(String)}
+     * @param parser    the parser positioned at a start tag
+     * @param name      the attribute name
+     * @return          the value, or empty string if it doesn't exist
+     */
+    protected static String getAttribute(XmlPullParser parser, String name)
+    {
+        String value = parser.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
     public static void init(Context context)
     {
         Resources resources = context.getResources();
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.graphics.drawable.Drawable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -121,6 +122,16 @@ public class PostListAdapter
         return view;
     }
 
+    private static final SquaredImageView.OnDrawableChangedListener sOnDrawableChangedListener =
+        new SquaredImageView.OnDrawableChangedListener()
+        {
+            @Override
+            public void onDrawableChanged(SquaredImageView view, Drawable oldDrawable, Drawable newDrawable)
+            {
+                Picasso.getThumbnailCache().onDrawableChanged(oldDrawable, newDrawable);
+            }
+        };
+
     private static class ViewHolder
     {
         public SquaredImageView thumbnail;
@@ -132,6 +143,8 @@ public class PostListAdapter
         public ViewHolder(View view)
         {
             thumbnail = (SquaredImageView)view.findViewById(R.id.item_thumbnail);
+            // the thumbnails are decoded into the bitmaps no view shows anymore.
+            thumbnail.setOnDrawableChangedListener(sOnDrawableChangedListener);
             title1 = (TextView)view.findViewById(R.id.item_title1);
             title2 = (TextView)view.findViewById(R.id.item_title2);
             progress = (ProgressBar)view.findViewById(R.id.item_progress);
@@ -182,7 +195,7 @@ public class PostListAdapter
         ViewHolder holder = (ViewHolder) view.getTag(R.id.view_tag_view_holder);
         holder.progress.setVisibility(View.VISIBLE);
         Picasso.withPreview(context)
-            .load(cursor.getString(INDEX_POST_PREVIEW_FILE_URL))
+            .load(Picasso.getThumbnailUri(cursor.getString(INDEX_POST_PREVIEW_FILE_URL)))
             .error(android.R.drawable.ic_delete)
             .into(holder.thumbnail, holder.callback);
         holder.thumbnail.setScaleType(ImageView.ScaleType.CENTER_CROP);
@@ -25,20 +25,36 @@ import android.database.DataSetObserver;
 import android.os.Build;
 import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import tw.idv.palatis.danboorugallery.DanbooruGallerySettings;
 import tw.idv.palatis.danboorugallery.NetworkChangeReceiver;
 import tw.idv.palatis.danboorugallery.database.HostsTable;
+import tw.idv.palatis.danboorugallery.database.PagedPostsCursor;
 import tw.idv.palatis.danboorugallery.database.PostsTable;
 import tw.idv.palatis.danboorugallery.database.TagsTable;
 import tw.idv.palatis.danboorugallery.model.Host;
@@ -59,12 +75,15 @@ public class SiteSession
     private static class HostStatus
     {
         public Host host;
-        public int page;
+        public volatile int page;
+        // the last page fetched ahead of page
+        public volatile int lastPage;
 
         public HostStatus(Host host)
         {
             this.host = host;
             this.page = 0;
+            this.lastPage = 0;
         }
     }
 
@@ -294,19 +313,84 @@ public class SiteSession
         return sTagSearchPattern;
     }
 
-    // runs on a worker thread
+    // the tag being typed, the last word of the pattern.
+    private static String getTagSearchWord()
+    {
+        String[] patterns = TextUtils.split(sTagSearchPattern, " ");
+        if (patterns.length > 0)
+            return patterns[patterns.length - 1];
+        return "";
+    }
+
+    private static final int LOCAL_TAG_SUGGESTIONS = 20;
+
+    /**
+     * the tags from the local database matching the pattern, no network involved.
+     * fast enough to be called on the main thread for every key stroke.
+     */
+    public static Cursor searchLocalTags()
+    {
+        return new TagCursor(TagsTable.suggestTags(getTagSearchWord(), LOCAL_TAG_SUGGESTIONS));
+    }
+
+    // tag searches get their own pool, a slow post fetch shouldn't hold up the suggestions.
+    private static final int MAX_CONCURRENT_TAG_SEARCHES = 4;
+    private static final ExecutorService sSearchTagsExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_TAG_SEARCHES);
+    // the hosts not answering by then are left out, the suggestions are no use once typing goes on.
+    private static final long TAG_SEARCH_DEADLINE = 3000; // ms
+
+    public interface TagSearchCallback
+    {
+        /**
+         * the tags found so far, called on the UI thread every time a host answers.
+         */
+        public void onPartialResult(Cursor cursor);
+    }
+
+    /**
+     * search the tags on a single host, the tags come back with the host in {@link Tag#hosts}.
+     */
+    private static class SearchTagsCallable
+        implements Callable<List<Tag>>
+    {
+        private final Host mHost;
+        private final String mPattern;
+        private final CancellationSignal mSignal;
+
+        public SearchTagsCallable(Host host, String pattern, CancellationSignal signal)
+        {
+            mHost = host;
+            mPattern = pattern;
+            mSignal = signal;
+        }
+
+        @Override
+        public List<Tag> call()
+            throws SiteAPIException
+        {
+            List<Tag> tags = mHost.getAPI().searchTags(mHost, mPattern, mSignal);
+            for (Tag tag : tags)
+                tag.hosts.add(mHost);
+            return tags;
+        }
+    }
+
     private static List<Tag> sEmptyTags = new ArrayList<>();
-    public static Cursor searchTags(CancellationSignal signal)
+
+    /**
+     * search the tags on all the enabled hosts at once. the hosts not answering before the
+     * deadline are left out. runs on a worker thread.
+     *
+     * @param signal    the cancellation signal
+     * @param callback  receives the tags found so far as the hosts answer, can be null
+     * @return the tags from the hosts, and the local ones the hosts don't know about.
+     */
+    public static Cursor searchTags(CancellationSignal signal, final TagSearchCallback callback)
     {
         if (!NetworkChangeReceiver.isConnectedOrConnecting())
-            return new TagCursor(sEmptyTags);
+            return searchLocalTags();
 
-        String[] patterns = TextUtils.split(sTagSearchPattern, " ");
-        String pattern;
-        if (patterns.length > 0)
-            pattern = patterns[patterns.length - 1];
-        else
-            pattern = "";
+        String pattern = getTagSearchWord();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
             if (signal.isCanceled())
@@ -316,70 +400,168 @@ public class SiteSession
         lock.lock();
         List<HostStatus> hosts = new ArrayList<>(sHosts);
         lock.unlock();
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
-            if (signal.isCanceled())
-                return new TagCursor(sEmptyTags);
 
-        SparseArray<Tag> allTags = new SparseArray<>();
+        // fan out to all the enabled hosts at once...
+        // interrupting doesn't stop a blocking read, every host gets its own signal to abort the
+        // connection, or a host that stopped answering holds on to a thread of the pool forever.
+        CompletionService<List<Tag>> completion = new ExecutorCompletionService<>(sSearchTagsExecutor);
+        final List<Future<List<Tag>>> futures = new ArrayList<>(hosts.size());
+        final List<CancellationSignal> hostSignals = new ArrayList<>(hosts.size());
         for (HostStatus status : hosts)
         {
-            Host host = status.host;
-
-            if (!host.enabled)
+            if (!status.host.enabled)
                 continue;
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
-                if (signal.isCanceled())
-                    break;
+            CancellationSignal hostSignal = new CancellationSignal();
+            hostSignals.add(hostSignal);
+            futures.add(completion.submit(new SearchTagsCallable(status.host, pattern, hostSignal)));
+        }
 
-            if (!NetworkChangeReceiver.isConnectedOrConnecting())
-                break;
+        // canceling the hosts wakes us up, the next search doesn't have to wait for the deadline.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener()
+            {
+                @Override
+                public void onCancel()
+                {
+                    cancelTagSearches(futures, hostSignals);
+                }
+            });
 
-            try
+        // ... and merge the results in the order they arrive.
+        // the tags are never modified once merged, the UI thread might be showing them already.
+        Map<String, Tag> allTags = new HashMap<>();
+        long deadline = SystemClock.uptimeMillis() + TAG_SEARCH_DEADLINE;
+        try
+        {
+            for (int pending = futures.size();pending > 0;--pending)
             {
-                List<Tag> tags = host.getAPI().searchTags(host, pattern);
-                for (Tag tag : tags)
+                long remaining = deadline - SystemClock.uptimeMillis();
+                List<Tag> tags;
+                try
+                {
+                    Future<List<Tag>> future = remaining > 0 ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (future == null)
+                    {
+                        Log.d(TAG, pending + " host(s) didn't answer the tag search in time.");
+                        break;
+                    }
+                    tags = future.get();
+                }
+                catch (InterruptedException ex)
                 {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
-                        if (signal.isCanceled())
-                            break;
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (CancellationException ex)
+                {
+                    break;
+                }
+                catch (ExecutionException ex)
+                {
+                    Log.d(TAG, "SiteAPI thrown an exception.", ex.getCause());
+                    continue;
+                }
 
-                    Tag oldTag = allTags.get(tag.name.hashCode());
+                for (Tag tag : tags)
+                {
+                    Tag oldTag = allTags.get(tag.name);
                     if (oldTag != null)
                     {
-                        oldTag.post_count += tag.post_count;
-                        oldTag.hosts.add(host);
+                        Tag merged = new Tag(oldTag.id, oldTag.name, oldTag.post_count + tag.post_count);
+                        merged.search_count = oldTag.search_count;
+                        merged.hosts.addAll(oldTag.hosts);
+                        merged.hosts.addAll(tag.hosts);
+                        allTags.put(tag.name, merged);
                     }
                     else
                     {
-                        tag.hosts.add(host);
-                        allTags.put(tag.name.hashCode(), tag);
+                        tag.search_count = TagsTable.getTagSearchCount(tag);
+                        allTags.put(tag.name, tag);
                     }
                 }
-            }
-            catch (SiteAPIException ex)
-            {
-                Log.d(TAG, "SiteAPI thrown an exception.", ex);
+
+                if (callback != null && pending > 1)
+                    postPartialTags(callback, new TagCursor(mergeLocalTags(allTags.values(), pattern)));
             }
         }
-        List<Tag> tags = new ArrayList<>(allTags.size());
-        for (int i = allTags.size() - 1;i >= 0;--i)
-            tags.add(allTags.valueAt(i));
+        finally
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                signal.setOnCancelListener(null);
 
-        for (Tag tag : tags)
-            tag.search_count = TagsTable.getTagSearchCount(tag);
+            // whoever's still searching is too late.
+            cancelTagSearches(futures, hostSignals);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            if (signal.isCanceled())
+                return new TagCursor(sEmptyTags);
+
+        return new TagCursor(mergeLocalTags(allTags.values(), pattern));
+    }
+
+    private static void cancelTagSearches(List<Future<List<Tag>>> futures, List<CancellationSignal> signals)
+    {
+        // the ones not started yet never start, the running ones have their connection aborted.
+        for (Future<List<Tag>> future : futures)
+            future.cancel(false);
+        for (CancellationSignal signal : signals)
+            signal.cancel();
+    }
+
+    /**
+     * sort the host suggestions, and add the local ones the hosts don't know about (anymore).
+     * the local post counts are only the posts we've downloaded, they can't be compared with
+     * the ones from the hosts, so the local tags only go before the host tags searched less.
+     */
+    private static List<Tag> mergeLocalTags(Collection<Tag> hostTags, String pattern)
+    {
+        List<Tag> sorted = new ArrayList<>(hostTags);
+        Set<String> names = new HashSet<>(sorted.size());
+        for (Tag tag : sorted)
+            names.add(tag.name);
 
         // TODO: support different comparators
-        Collections.sort(tags, new Comparator<Tag>()
+        Collections.sort(sorted, new Comparator<Tag>()
         {
             @Override
             public int compare(Tag lhs, Tag rhs)
             {
+                if (lhs.search_count != rhs.search_count)
+                    return rhs.search_count - lhs.search_count;
                 return rhs.post_count - lhs.post_count;
             }
         });
 
-        return new TagCursor(tags);
+        // already the most searched first, then by the local post counts.
+        List<Tag> local = new ArrayList<>();
+        for (Tag tag : TagsTable.suggestTags(pattern, LOCAL_TAG_SUGGESTIONS))
+            if (!names.contains(tag.name))
+                local.add(tag);
+
+        List<Tag> tags = new ArrayList<>(sorted.size() + local.size());
+        int i = 0, j = 0;
+        while (i < sorted.size() || j < local.size())
+        {
+            if (j == local.size() || (i < sorted.size() && sorted.get(i).search_count >= local.get(j).search_count))
+                tags.add(sorted.get(i++));
+            else
+                tags.add(local.get(j++));
+        }
+        return tags;
+    }
+
+    private static void postPartialTags(final TagSearchCallback callback, final Cursor cursor)
+    {
+        sHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onPartialResult(cursor);
+            }
+        });
     }
 
     private static ReentrantReadWriteLock sFilterTagsLock = new ReentrantReadWriteLock();
@@ -415,7 +597,7 @@ public class SiteSession
         sRebuildTempPostsTableExecutor.execute(sRebuildTempPostsTableRunnable);
     }
 
-    public static Cursor getAllPostsCursor(String[] columns)
+    public static PagedPostsCursor getAllPostsCursor(String[] columns)
     {
         Lock lock = sSelectionsLock.readLock();
         lock.lock();
@@ -423,7 +605,7 @@ public class SiteSession
         String[] selectionArgs = new String[sSelectionArgs.length];
         System.arraycopy(sSelectionArgs, 0, selectionArgs, 0, sSelectionArgs.length);
         lock.unlock();
-        return PostsTable.getTempPostsCursor(columns, selection, selectionArgs, Post.KEY_POST_CREATED_AT + " DESC", null);
+        return PostsTable.getTempPostsPagedCursor(columns, selection, selectionArgs);
     }
 
     public static Host getHostById(int id)
@@ -441,67 +623,158 @@ public class SiteSession
     }
 
     private static OnlyNewestSingleThreadExecutor sFetchPostExecutor = new OnlyNewestSingleThreadExecutor();
-    private static class FetchPostRunnable
-        implements Runnable
+
+    // hosts are fetched concurrently on this pool, but each host only gets one request in flight
+    // at a time (its pages are fetched one after another) so we never hammer a single booru.
+    private static final int MAX_CONCURRENT_HOST_FETCHES = 4;
+    private static final ExecutorService sFetchHostExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_HOST_FETCHES);
+
+    private static class FetchHostResult
     {
-        private final Runnable mPreExecuteRunnable = new Runnable()
+        public final Host host;
+        public final List<Post> posts;
+        public final SiteAPIException error;
+
+        public FetchHostResult(Host host, List<Post> posts, SiteAPIException error)
         {
-            @Override
-            public void run()
-            {
-                mCallback.onPreExecute();
-            }
-        };
+            this.host = host;
+            this.posts = posts;
+            this.error = error;
+        }
+    }
 
-        private final Runnable mPostExecuteRunnable = new Runnable()
+    /**
+     * Fetch (up to) two pages from a single host and store them into the database.
+     * Returns {@code null} posts when the host is already at the requested page.
+     */
+    private static class FetchHostCallable
+        implements Callable<FetchHostResult>
+    {
+        private final HostStatus mStatus;
+        private final long mPostCreatedAt;
+        private final boolean mForced;
+        private final int mPagesAhead;
+        private final String[] mFilterTags;
+        private final CancellationSignal mSignal;
+
+        public FetchHostCallable(HostStatus status, long post_created_at, boolean forced, int pages_ahead, String[] filterTags, CancellationSignal signal)
         {
-            @Override
-            public void run()
+            mStatus = status;
+            mPostCreatedAt = post_created_at;
+            mForced = forced;
+            mPagesAhead = pages_ahead;
+            mFilterTags = filterTags;
+            mSignal = signal;
+        }
+
+        @Override
+        public FetchHostResult call()
+        {
+            Host host = mStatus.host;
+            SiteAPI api = host.getAPI();
+            int oldPage = mStatus.page;
+            int oldLastPage = mStatus.lastPage;
+
+            try
             {
-                mCallback.onPostExecute();
+                mSignal.throwIfCanceled();
+
+                int limit = host.getPageLimit(DanbooruGallerySettings.getBandwidthUsageType());
+                int position = mPostCreatedAt == -1 ? 0 : PostsTable.getPostPosition(host, mPostCreatedAt);
+                int page = position / limit;
+                int first = page;
+                if (!mForced && oldPage == page)
+                {
+                    // only the pages ahead we don't have yet
+                    if (oldLastPage >= page + mPagesAhead)
+                        return new FetchHostResult(host, null, null);
+                    first = oldLastPage + 1;
+                }
+
+                mStatus.page = page;
+                List<Post> posts = new ArrayList<>();
+                for (int i = first;i <= page + mPagesAhead;++i)
+                {
+                    if (i != page && !NetworkChangeReceiver.isConnectedOrConnecting())
+                        break;
+
+                    List<Post> fetched = api.fetchPosts(host, position + (i - page) * limit, mFilterTags, mSignal);
+                    PostsTable.addOrUpdatePosts(host, fetched, mSignal);
+                    Picasso.addContentKeys(sContext, fetched);
+                    posts.addAll(fetched);
+                    mStatus.lastPage = i;
+
+                    // no more posts after this page
+                    if (fetched.size() < limit)
+                        break;
+                }
+
+                return new FetchHostResult(host, posts, null);
             }
-        };
+            catch (SiteAPIException ex)
+            {
+                return new FetchHostResult(host, null, ex);
+            }
+            catch (OperationCanceledException ex)
+            {
+                // allow the next job to fetch these pages again.
+                mStatus.page = oldPage;
+                mStatus.lastPage = oldLastPage;
+                return new FetchHostResult(host, null, null);
+            }
+        }
+    }
 
-        private final Runnable mProgressUpdateRunnable = new Runnable()
+    private static class FetchPostRunnable
+        implements Runnable
+    {
+        private final Runnable mPreExecuteRunnable = new Runnable()
         {
             @Override
             public void run()
             {
-                mCallback.onProgressUpdate(mProgress);
+                mCallback.onPreExecute();
             }
         };
 
-        private final Runnable mOnErrorRunnable = new Runnable()
+        private final Runnable mPostExecuteRunnable = new Runnable()
         {
             @Override
             public void run()
             {
-                mCallback.onError(mErrorThrowable);
+                mCallback.onPostExecute();
             }
         };
 
         private boolean mForced;
+        private int mPagesAhead;
         private long mPostCreatedAt;
         private int mProgress = 0;
-        private SiteAPIException mErrorThrowable;
         private LoadingCallback mCallback;
+        private final CancellationSignal mSignal;
+        private final List<CancellationSignal> mHostSignals = new ArrayList<>();
 
-        public FetchPostRunnable(long post_created_at, boolean forced, LoadingCallback callback)
+        public FetchPostRunnable(long post_created_at, boolean forced, int pages_ahead, CancellationSignal signal, LoadingCallback callback)
         {
             mPostCreatedAt = post_created_at;
             mForced = forced;
+            mPagesAhead = pages_ahead;
+            mSignal = signal;
             if (callback == null)
                 mCallback = sDummyLoadingCallback;
             else
                 mCallback = callback;
         }
 
-        // TODO: supports CancellationSignal
         @Override
         public void run()
         {
-            if (!NetworkChangeReceiver.isConnectedOrConnecting())
+            // still tell the caller we're done, it might be waiting for us before fetching again.
+            if (!NetworkChangeReceiver.isConnectedOrConnecting() || mSignal.isCanceled())
+            {
+                sHandler.post(mPostExecuteRunnable);
                 return;
+            }
 
             sHandler.post(mPreExecuteRunnable);
 
@@ -515,70 +788,168 @@ public class SiteSession
             String[] filterTags = TextUtils.split(sFilterTags, " ");
             lock.unlock();
 
+            // fan out to all the enabled hosts at once...
+            // a CancellationSignal only holds one listener, so every host gets its own signal,
+            // they are all canceled together with mSignal.
+            CompletionService<FetchHostResult> completion = new ExecutorCompletionService<>(sFetchHostExecutor);
+            int pending = 0;
             for (HostStatus status : hosts)
             {
-                Host host = status.host;
-
-                if (!host.enabled)
+                if (!status.host.enabled)
                     continue;
 
-                if (!NetworkChangeReceiver.isConnectedOrConnecting())
-                    break;
-
-                SiteAPI api = host.getAPI();
+                CancellationSignal signal = new CancellationSignal();
+                mHostSignals.add(signal);
+                completion.submit(new FetchHostCallable(status, mPostCreatedAt, mForced, mPagesAhead, filterTags, signal));
+                ++pending;
+            }
+            mSignal.setOnCancelListener(new CancellationSignal.OnCancelListener()
+            {
+                @Override
+                public void onCancel()
+                {
+                    for (CancellationSignal signal : mHostSignals)
+                        signal.cancel();
+                }
+            });
 
+            // ... and merge the results in the order they arrive, so the fastest host shows up first.
+            for (;pending > 0;--pending)
+            {
+                FetchHostResult result;
                 try
                 {
-                    int position = mPostCreatedAt == -1 ? 0 : PostsTable.getPostPosition(host, mPostCreatedAt);
-                    int page = position / host.getPageLimit(DanbooruGallerySettings.getBandwidthUsageType());
-                    if (!mForced && status.page == page)
-                        continue;
-
-                    status.page = page;
-                    List<Post> posts = api.fetchPosts(host, position, filterTags);
-
-                    // fetch the next page to avoid stall
-                    int updated = PostsTable.addOrUpdatePosts(host, posts);
-                    int limit = host.getPageLimit(DanbooruGallerySettings.getBandwidthUsageType());
-                    if (mForced && updated == limit)
-                    {
-                        posts = api.fetchPosts(host, position + limit, filterTags);
-                        PostsTable.addOrUpdatePosts(host, posts);
-                    }
-                    rebuildTempTable();
-
-                    mProgress += posts.size();
-
-                    if (DanbooruGallerySettings.getAggressivePrefetchPreview())
-                        for (Post post : posts)
-                            Picasso.withPrefetch(sContext)
-                                .load(post.file_url_preview)
-                                .fetch();
-
-                    sHandler.post(mProgressUpdateRunnable);
+                    result = completion.take().get();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (ExecutionException ex)
+                {
+                    Log.d(TAG, "fetching posts failed unexpectedly.", ex.getCause());
+                    continue;
                 }
-                catch (SiteAPIException ex)
+
+                if (result.error != null)
                 {
-                    mErrorThrowable = ex;
-                    sHandler.post(mOnErrorRunnable);
+                    postError(result.error);
+                    continue;
                 }
+
+                // this host is already at the requested page, or we've been canceled.
+                // keep draining so no host task of this job outlives it.
+                if (result.posts == null || mSignal.isCanceled())
+                    continue;
+
+                // temp.posts is kept up to date by PostsTable.addOrUpdatePosts()
+                mProgress += result.posts.size();
+
+                if (DanbooruGallerySettings.getAggressivePrefetchPreview())
+                    for (Post post : result.posts)
+                        Picasso.withPrefetch(sContext)
+                            .load(Picasso.getThumbnailUri(post.file_url_preview))
+                            .fetch();
+
+                postProgressUpdate(result.host, result.posts.size(), mProgress);
             }
 
+            mSignal.setOnCancelListener(null);
             sHandler.post(mPostExecuteRunnable);
         }
+
+        private void postProgressUpdate(final Host host, final int hostProgress, final int progress)
+        {
+            sHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mCallback.onHostProgressUpdate(host, hostProgress);
+                    mCallback.onProgressUpdate(progress);
+                }
+            });
+        }
+
+        private void postError(final SiteAPIException error)
+        {
+            sHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mCallback.onError(error);
+                }
+            });
+        }
     }
 
     private static Handler sHandler = new Handler();
+    private static CancellationSignal sFetchPostSignal = null;
 
-    // must be called from the UI thread
-    public static void fetchPosts(long post_created_at, boolean forced, LoadingCallback callback)
+    /**
+     * fetch posts from all enabled hosts, the running fetch (if any) is canceled.
+     * must be called from the UI thread.
+     *
+     * @param post_created_at    fetch the page containing this time, -1 for the first page
+     * @param forced             fetch even if the host is already at that page
+     * @param callback           the loading callback, can be null
+     * @return                   the handle to cancel this fetch
+     */
+    public static CancellationSignal fetchPosts(long post_created_at, boolean forced, LoadingCallback callback)
     {
-        sFetchPostExecutor.execute(new FetchPostRunnable(post_created_at, forced, callback));
+        // a forced fetch also takes the next page to avoid stall
+        return fetchPosts(post_created_at, forced, forced ? 1 : 0, callback);
+    }
+
+    /**
+     * fetch posts from all enabled hosts, the running fetch (if any) is canceled.
+     * must be called from the UI thread.
+     *
+     * @param post_created_at    fetch the page containing this time, -1 for the first page
+     * @param forced             fetch even if the host is already at that page
+     * @param pages_ahead        number of pages to fetch after that page for each host, pages
+     *                           fetched ahead earlier are not fetched again unless forced
+     * @param callback           the loading callback, can be null
+     * @return                   the handle to cancel this fetch
+     */
+    public static CancellationSignal fetchPosts(long post_created_at, boolean forced, int pages_ahead, LoadingCallback callback)
+    {
+        // the newest job replaces the old one, don't let the old one keep downloading.
+        if (sFetchPostSignal != null)
+            sFetchPostSignal.cancel();
+        sFetchPostSignal = new CancellationSignal();
+        sFetchPostExecutor.execute(new FetchPostRunnable(post_created_at, forced, pages_ahead, sFetchPostSignal, callback));
+        return sFetchPostSignal;
+    }
+
+    /**
+     * @return number of posts a page from every enabled host adds up to
+     */
+    public static int getPageLimitOfAllHosts()
+    {
+        int type = DanbooruGallerySettings.getBandwidthUsageType();
+        int limit = 0;
+        Lock lock = sHostsLock.readLock();
+        lock.lock();
+        for (HostStatus status : sHosts)
+            if (status.host.enabled)
+                limit += status.host.getPageLimit(type);
+        lock.unlock();
+        return limit;
     }
 
     public static interface LoadingCallback
     {
         public void onPreExecute();
+
+        /**
+         * called on the UI thread each time a host has finished and its posts are merged.
+         * @param host        the host that just finished
+         * @param progress    number of posts fetched from {@code host}
+         */
+        public void onHostProgressUpdate(Host host, int progress);
         public void onProgressUpdate(int progress);
         public void onPostExecute();
         public void onError(SiteAPIException error);
@@ -588,10 +959,12 @@ public class SiteSession
         @Override
         public void onPreExecute() { }
         @Override
+        public void onHostProgressUpdate(Host host, int progress) { }
+        @Override
         public void onProgressUpdate(int progress) { }
         @Override
         public void onPostExecute() { }
         @Override
         public void onError(SiteAPIException error) { }
     };
-}
\ No newline at end of file
+}
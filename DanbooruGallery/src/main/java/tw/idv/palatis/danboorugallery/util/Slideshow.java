@@ -0,0 +1,375 @@
+////////////////////////////////////////////////////////////////////////////////
+// Danbooru Gallery Android - an danbooru-style imageboard browser
+//     Copyright (C) 2014  Victor Tseng
+//
+//     This program is free software: you can redistribute it and/or modify
+//     it under the terms of the GNU General Public License as published by
+//     the Free Software Foundation, either version 3 of the License, or
+//     (at your option) any later version.
+//
+//     This program is distributed in the hope that it will be useful,
+//     but WITHOUT ANY WARRANTY; without even the implied warranty of
+//     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//     GNU General Public License for more details.
+//
+//     You should have received a copy of the GNU General Public License
+//     along with this program. If not, see <http://www.gnu.org/licenses/>
+////////////////////////////////////////////////////////////////////////////////
+
+package tw.idv.palatis.danboorugallery.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.squareup.picasso.Target;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tw.idv.palatis.danboorugallery.DanbooruGalleryApplication;
+import tw.idv.palatis.danboorugallery.DanbooruGallerySettings;
+import tw.idv.palatis.danboorugallery.model.Post;
+import tw.idv.palatis.danboorugallery.picasso.ImagePreloader;
+import tw.idv.palatis.danboorugallery.picasso.Picasso;
+
+/**
+ * Plays the posts one after another, but only moves on once the next one is ready to be shown,
+ * or after waiting for it for a few times the delay.
+ * The images a few pages ahead are pulled into the disk cache. How many depends on how long they
+ * take to download compared to the delay between the pages: if an image takes twice the delay
+ * to download, it has to be started two pages ahead. Only the next one is decoded ahead, into
+ * the memory cache, and only if it fits in there comfortably. Only to be used from the main
+ * thread.
+ */
+public class Slideshow
+{
+    private static final String TAG = "Slideshow";
+
+    private static final int MIN_BUFFER = 1;
+    private static final int MAX_BUFFER = 4;
+    private static final int INITIAL_BUFFER = 2;
+    // don't wait forever for a slow image, the page shows its own progress anyway.
+    private static final int MAX_WAIT_FACTOR = 3;
+    private static final float SMOOTHING = 0.25f;
+    // the next image is decoded ahead only if it takes no more than this part of the memory
+    // cache, or it'd be evicted before it's shown.
+    private static final int DECODE_CACHE_FRACTION = 2;
+
+    public interface Callbacks
+    {
+        public int getCount();
+
+        public Post getPost(int position);
+
+        /**
+         * @return the position of the page on the screen.
+         */
+        public int getCurrentPosition();
+
+        /**
+         * show the page at {@code position}.
+         */
+        public void onAdvance(int position);
+    }
+
+    private final Context mContext;
+    private final Callbacks mCallbacks;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ImagePreloader mPreloader;
+    // the images being pulled into the disk cache, or already there, by their position. the
+    // positions are only good until the posts change, see onDataSetChanged().
+    private final SparseArray<Buffered> mBuffered = new SparseArray<>();
+    // the next image being decoded into the memory cache, if it's decoded ahead.
+    private Decode mDecode = null;
+
+    private boolean mPlaying = false;
+    private boolean mWaiting = false;
+    private long mShownAt;          // uptime when the current page was shown
+    private float mLoadTime = -1;   // ms to download an image that's not in the disk cache, smoothed
+
+    public Slideshow(Context context, Callbacks callbacks)
+    {
+        mContext = context.getApplicationContext();
+        mCallbacks = callbacks;
+        mPreloader = Picasso.createPreloader(mContext);
+        mPreloader.setOnPreloadedListener(mOnPreloadedListener);
+    }
+
+    public boolean isPlaying()
+    {
+        return mPlaying;
+    }
+
+    /**
+     * start playing from the page on the screen.
+     */
+    public void start()
+    {
+        stop();
+        mPlaying = true;
+        mShownAt = SystemClock.uptimeMillis();
+        fillBuffer();
+        mHandler.postDelayed(mTick, DanbooruGallerySettings.getAutoplayDelay());
+    }
+
+    public void stop()
+    {
+        mPlaying = false;
+        mWaiting = false;
+        mHandler.removeCallbacks(mTick);
+
+        mPreloader.cancel();
+        mBuffered.clear();
+        cancelDecode();
+    }
+
+    /**
+     * the posts have changed, e.g. newer ones came in at the top and moved everything down.
+     * whatever was buffered by position is looked up again.
+     */
+    public void onDataSetChanged()
+    {
+        if (!mPlaying)
+            return;
+        mBuffered.clear();
+        cancelDecode();
+        fillBuffer();
+    }
+
+    private final Runnable mTick = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!mPlaying)
+                return;
+
+            int next = next(mCallbacks.getCurrentPosition());
+            long delay = DanbooruGallerySettings.getAutoplayDelay();
+            long waited = SystemClock.uptimeMillis() - mShownAt;
+            if (isReady(next) || waited >= delay * MAX_WAIT_FACTOR)
+            {
+                advance(next);
+                return;
+            }
+
+            // the image getting ready moves us on, this is only the deadline.
+            Log.v(TAG, "page " + next + " isn't ready yet, waiting.");
+            mWaiting = true;
+            mHandler.postDelayed(mTick, delay * MAX_WAIT_FACTOR - waited);
+        }
+    };
+
+    private void advance(int position)
+    {
+        mWaiting = false;
+        mHandler.removeCallbacks(mTick);
+
+        mShownAt = SystemClock.uptimeMillis();
+        mCallbacks.onAdvance(position);
+
+        fillBuffer();
+        mHandler.postDelayed(mTick, DanbooruGallerySettings.getAutoplayDelay());
+    }
+
+    private void advanceIfReady()
+    {
+        int next = next(mCallbacks.getCurrentPosition());
+        if (mPlaying && mWaiting && isReady(next))
+            advance(next);
+    }
+
+    private int next(int position)
+    {
+        int next = position + 1;
+        return next < mCallbacks.getCount() ? next : 0;
+    }
+
+    /**
+     * @return whether the page at {@code position} can be shown without waiting for the network,
+     *         or for the decoder if it's small enough to be decoded ahead.
+     */
+    private boolean isReady(int position)
+    {
+        Buffered buffered = mBuffered.get(position);
+        if (buffered == null || !buffered.mPreloaded)
+            return false;
+        if (!shouldDecode(buffered.mPost))
+            return true;
+        return mDecode != null && mDecode.mPosition == position && mDecode.mDone;
+    }
+
+    /**
+     * @return whether the image of {@code post} should be decoded before it's shown. a huge one
+     *         would push everything else out of the memory cache, and fall out of it itself, or
+     *         the page shows it in tiles from the disk anyway.
+     */
+    private static boolean shouldDecode(Post post)
+    {
+        if (post.image_width > DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE ||
+            post.image_height > DanbooruGalleryApplication.MAXIMUM_TEXTURE_SIZE)
+            return false;
+        long bytes = (long) post.image_width * post.image_height * 4;
+        return bytes <= Picasso.getMemCache().maxSize() / DECODE_CACHE_FRACTION;
+    }
+
+    /**
+     * @return how many pages ahead should be in the disk cache to keep up with the delay.
+     */
+    private int getBufferSize()
+    {
+        if (mLoadTime < 0)
+            return INITIAL_BUFFER;
+        int delay = Math.max(DanbooruGallerySettings.getAutoplayDelay(), 1);
+        int size = (int) Math.ceil(mLoadTime / delay) + 1;
+        return Math.max(MIN_BUFFER, Math.min(size, MAX_BUFFER));
+    }
+
+    private void fillBuffer()
+    {
+        int count = mCallbacks.getCount();
+        int size = Math.min(getBufferSize(), count - 1);
+
+        // the positions we want in the disk cache, in the order they're shown.
+        SparseArray<Buffered> wanted = new SparseArray<>(size);
+        List<String> uris = new ArrayList<>(size);
+        int position = mCallbacks.getCurrentPosition();
+        for (int i = 0; i < size; ++i)
+        {
+            position = next(position);
+            Buffered buffered = mBuffered.get(position);
+            if (buffered == null)
+            {
+                Post post = mCallbacks.getPost(position);
+                if (post == null)
+                    continue;
+                buffered = new Buffered(post);
+            }
+            wanted.put(position, buffered);
+            uris.add(buffered.mUri);
+        }
+
+        mBuffered.clear();
+        for (int i = 0; i < wanted.size(); ++i)
+            mBuffered.put(wanted.keyAt(i), wanted.valueAt(i));
+
+        // whatever we've passed, or is too far ahead now, is canceled.
+        mPreloader.preload(uris);
+        decodeNext();
+    }
+
+    /**
+     * decode the next image into the memory cache once it's on the disk, if it fits in there.
+     */
+    private void decodeNext()
+    {
+        int next = next(mCallbacks.getCurrentPosition());
+        if (mDecode != null && mDecode.mPosition == next)
+            return;
+        cancelDecode();
+
+        Buffered buffered = mBuffered.get(next);
+        if (buffered == null || !buffered.mPreloaded || !shouldDecode(buffered.mPost))
+            return;
+
+        mDecode = new Decode(next);
+        // the same uri as the page loads, so the page finds it in the memory cache.
+        Picasso.withNeighbour(mContext)
+            .load(buffered.mUri)
+            .into(mDecode);
+    }
+
+    private void cancelDecode()
+    {
+        if (mDecode == null)
+            return;
+        Picasso.withNeighbour(mContext).cancelRequest(mDecode);
+        mDecode = null;
+    }
+
+    private final ImagePreloader.OnPreloadedListener mOnPreloadedListener = new ImagePreloader.OnPreloadedListener()
+    {
+        @Override
+        public void onPreloaded(String uri, boolean downloaded)
+        {
+            for (int i = 0; i < mBuffered.size(); ++i)
+            {
+                Buffered buffered = mBuffered.valueAt(i);
+                if (buffered.mPreloaded || !buffered.mUri.equals(uri))
+                    continue;
+
+                buffered.mPreloaded = true;
+                // the disk cache says nothing about the network.
+                if (downloaded)
+                {
+                    float time = SystemClock.uptimeMillis() - buffered.mStart;
+                    mLoadTime = mLoadTime < 0 ? time : mLoadTime + (time - mLoadTime) * SMOOTHING;
+                    Log.v(TAG, "downloading takes " + mLoadTime + " ms, buffering " + getBufferSize() + " pages.");
+                }
+            }
+
+            if (!mPlaying)
+                return;
+            decodeNext();
+            advanceIfReady();
+        }
+    };
+
+    // an image in the disk cache, or on its way there.
+    private static class Buffered
+    {
+        private final Post mPost;
+        private final String mUri;
+        private final long mStart = SystemClock.uptimeMillis();
+        // failed ones are as ready as they get, the page shows the error.
+        private boolean mPreloaded = false;
+
+        public Buffered(Post post)
+        {
+            mPost = post;
+            mUri = Picasso.getFullImageUri(post);
+        }
+    }
+
+    // picasso only keeps a weak reference to the target, mDecode keeps it alive.
+    private class Decode
+        implements Target
+    {
+        private final int mPosition;
+        private boolean mDone = false;
+
+        public Decode(int position)
+        {
+            mPosition = position;
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap, com.squareup.picasso.Picasso.LoadedFrom from)
+        {
+            onDecoded();
+        }
+
+        @Override
+        public void onBitmapFailed(Drawable errorDrawable)
+        {
+            // nothing to wait for, the page shows the error.
+            onDecoded();
+        }
+
+        @Override
+        public void onPrepareLoad(Drawable placeHolderDrawable) { }
+
+        private void onDecoded()
+        {
+            mDone = true;
+            if (mDecode == this)
+                advanceIfReady();
+        }
+    }
+}
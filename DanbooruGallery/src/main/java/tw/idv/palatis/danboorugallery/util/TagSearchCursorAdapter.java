@@ -37,6 +37,7 @@ public class TagSearchCursorAdapter
     extends CursorAdapter
 {
     private static String sHostSeparator = null;
+    private static String sHostLocal = null;
     private static String sItemTitle = null;
     private static String sItemSummary = null;
     private LayoutInflater mInflater = null;
@@ -47,6 +48,8 @@ public class TagSearchCursorAdapter
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         if (sHostSeparator == null)
             sHostSeparator = context.getResources().getString(R.string.tags_search_item_host_separator);
+        if (sHostLocal == null)
+            sHostLocal = context.getResources().getString(R.string.tags_search_item_host_local);
         if (sItemTitle == null)
             sItemTitle = context.getResources().getString(R.string.tags_search_item_title);
         if (sItemSummary == null)
@@ -96,8 +99,15 @@ public class TagSearchCursorAdapter
         StringBuilder sb = new StringBuilder();
         for (Host host : tag.hosts)
             sb.append(host.name).append(sHostSeparator);
-        sb.delete(sb.length() - sHostSeparator.length(), sb.length());
-        String hosts = sb.toString();
+        // only known locally, the hosts haven't answered (yet).
+        String hosts;
+        if (sb.length() == 0)
+            hosts = sHostLocal;
+        else
+        {
+            sb.delete(sb.length() - sHostSeparator.length(), sb.length());
+            hosts = sb.toString();
+        }
 
         holder.title.setText(String.format(sItemTitle, tag.id, tag.name, tag.post_count, tag.search_count, hosts));
         holder.summary.setText(String.format(sItemSummary, tag.id, tag.name, tag.post_count, tag.search_count, hosts));